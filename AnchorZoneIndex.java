@@ -0,0 +1,166 @@
+/* 
+ * Released under GPLv3. See LICENSE.txt for details. 
+ */
+package routing;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import core.Coord;
+
+/**
+ * Index of the anchor zones of the Floating Content messages in a buffer.
+ * Messages with the same anchor point and radius share a zone. Each zone
+ * is scheduled to be checked at the earliest time the host could have
+ * left it, based on the host's distance to the zone boundary at the last
+ * check and the maximum speed of the host. Only the zones that are due
+ * are checked, instead of every buffered message on every update.
+ */
+public class AnchorZoneIndex {
+	/** zones by anchor point */
+	private Map<Coord, List<Zone>> zones;
+	/** zone of each indexed message ID */
+	private Map<String, Zone> zoneOf;
+	/** zones ordered by their next check time */
+	private PriorityQueue<Zone> schedule;
+	/** zones being checked (reused between checks) */
+	private List<Zone> due;
+	
+	/**
+	 * Creates a new, empty index
+	 */
+	public AnchorZoneIndex() {
+		this.zones = new HashMap<Coord, List<Zone>>();
+		this.zoneOf = new HashMap<String, Zone>();
+		this.schedule = new PriorityQueue<Zone>();
+		this.due = new ArrayList<Zone>();
+	}
+	
+	/**
+	 * Adds a message to the index. A new zone is checked on the next call
+	 * of {@link #collectExited(Coord, double, double, List)}.
+	 * @param id ID of the message
+	 * @param anchor Anchor point of the message
+	 * @param a Radius of the message's anchor zone
+	 * @param now Current simulation time
+	 */
+	public void add(String id, Coord anchor, double a, double now) {
+		List<Zone> atAnchor = zones.get(anchor);
+		if (atAnchor == null) {
+			atAnchor = new ArrayList<Zone>(1);
+			zones.put(anchor, atAnchor);
+		}
+		
+		Zone zone = null;
+		for (Zone z : atAnchor) {
+			if (z.a == a) {
+				zone = z;
+				break;
+			}
+		}
+		if (zone == null) {
+			zone = new Zone(anchor, a);
+			atAnchor.add(zone);
+		}
+		
+		zone.ids.add(id);
+		zoneOf.put(id, zone);
+		if (!zone.scheduled) {
+			zone.nextCheck = now;
+			zone.scheduled = true;
+			schedule.add(zone);
+		}
+	}
+	
+	/**
+	 * Removes a message from the index
+	 * @param id ID of the message
+	 */
+	public void remove(String id) {
+		Zone zone = zoneOf.remove(id);
+		if (zone == null) {
+			return;
+		}
+		
+		zone.ids.remove(id);
+		if (zone.ids.isEmpty()) {
+			/* dropped from the schedule when it is next due */
+			List<Zone> atAnchor = zones.get(zone.anchor);
+			atAnchor.remove(zone);
+			if (atAnchor.isEmpty()) {
+				zones.remove(zone.anchor);
+			}
+		}
+	}
+	
+	/**
+	 * Checks the zones that are due and collects the IDs of the messages
+	 * whose anchor zone the host has left. Zones the host is still in are
+	 * rescheduled to the earliest time it could reach their boundary.
+	 * @param loc Current location of the host
+	 * @param now Current simulation time
+	 * @param maxSpeed Maximum speed of the host (infinite to check all the
+	 * zones on every call)
+	 * @param exited The list where IDs of messages outside their zone are
+	 * added
+	 */
+	public void collectExited(Coord loc, double now, double maxSpeed, 
+			List<String> exited) {
+		while (!schedule.isEmpty() && schedule.peek().nextCheck <= now) {
+			due.add(schedule.poll());
+		}
+		
+		for (Zone zone : due) {
+			if (zone.ids.isEmpty()) {
+				zone.scheduled = false;
+				continue;
+			}
+			
+			double distance = loc.distance(zone.anchor);
+			if (distance > zone.a) {
+				exited.addAll(zone.ids);
+				zone.nextCheck = now;
+			} else {
+				zone.nextCheck = now + (zone.a - distance) / maxSpeed;
+			}
+			schedule.add(zone);
+		}
+		due.clear();
+	}
+	
+	/**
+	 * Returns the number of zones in the index
+	 * @return The number of zones with at least one message
+	 */
+	public int getNrofZones() {
+		int n = 0;
+		for (List<Zone> atAnchor : zones.values()) {
+			n += atAnchor.size();
+		}
+		return n;
+	}
+	
+	/**
+	 * An anchor zone and the IDs of the messages that belong to it
+	 */
+	private static class Zone implements Comparable<Zone> {
+		private Coord anchor;
+		private double a;
+		private List<String> ids;
+		private double nextCheck;
+		private boolean scheduled;
+		
+		public Zone(Coord anchor, double a) {
+			this.anchor = anchor;
+			this.a = a;
+			this.ids = new ArrayList<String>(2);
+		}
+		
+		public int compareTo(Zone other) {
+			return Double.compare(this.nextCheck, other.nextCheck);
+		}
+	}
+}
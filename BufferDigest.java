@@ -0,0 +1,171 @@
+/*
+ * Released under GPLv3. See LICENSE.txt for details.
+ */
+package routing;
+
+import java.util.Arrays;
+
+import core.Message;
+
+/**
+ * Digest of a router's buffer: the buffered messages sorted by their
+ * {@link MessageIndex}, with a version number that changes whenever the
+ * buffer changes. Peers keep a {@link Difference} per connection and only
+ * recompute it when either buffer's version has changed, instead of
+ * asking the peer about every buffered message on every update. The
+ * digest retains the message indexes of its messages (see
+ * {@link MessageIndex#retain(int)}).
+ */
+public class BufferDigest {
+	private int[] ids;
+	private Message[] messages;
+	private int size;
+	private long version;
+
+	/**
+	 * Creates an empty digest
+	 */
+	public BufferDigest() {
+		this.ids = new int[16];
+		this.messages = new Message[16];
+	}
+
+	/**
+	 * Adds a message to the digest (or replaces the message with the
+	 * same ID)
+	 * @param m The message
+	 */
+	public void add(Message m) {
+		int id = MessageIndex.of(m.getId());
+		int i = Arrays.binarySearch(ids, 0, size, id);
+
+		if (i < 0) {
+			i = -i - 1;
+			if (size == ids.length) {
+				ids = Arrays.copyOf(ids, size * 2);
+				messages = Arrays.copyOf(messages, size * 2);
+			}
+			System.arraycopy(ids, i, ids, i + 1, size - i);
+			System.arraycopy(messages, i, messages, i + 1, size - i);
+			ids[i] = id;
+			size++;
+			MessageIndex.retain(id);
+		}
+		messages[i] = m;
+		version++;
+	}
+
+	/**
+	 * Removes a message from the digest
+	 * @param id ID of the message
+	 */
+	public void remove(String id) {
+		int i = Arrays.binarySearch(ids, 0, size, MessageIndex.of(id));
+
+		if (i >= 0) {
+			MessageIndex.release(ids[i]);
+			System.arraycopy(ids, i + 1, ids, i, size - i - 1);
+			System.arraycopy(messages, i + 1, messages, i, size - i - 1);
+			size--;
+			messages[size] = null;
+			version++;
+		}
+	}
+
+	/**
+	 * Returns the number of messages in the digest
+	 * @return The number of messages
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Returns a message of the digest. Iterating the buffer this way does
+	 * not allocate an iterator.
+	 * @param i Index of the message (0...size-1), in message index order
+	 * @return The message
+	 */
+	public Message get(int i) {
+		return messages[i];
+	}
+
+	/**
+	 * Returns the version of the digest
+	 * @return The version number
+	 */
+	public long getVersion() {
+		return this.version;
+	}
+
+	/**
+	 * The messages of one digest that are not in another one, e.g. the
+	 * messages of this host that a peer doesn't have
+	 */
+	public static class Difference {
+		private BufferDigest of;
+		private BufferDigest minus;
+		private long ofVersion;
+		private long minusVersion;
+		private Message[] messages;
+		private int size;
+
+		/**
+		 * Creates a difference
+		 * @param of The digest whose messages are listed
+		 * @param minus The digest whose messages are left out
+		 */
+		public Difference(BufferDigest of, BufferDigest minus) {
+			this.of = of;
+			this.minus = minus;
+			this.ofVersion = -1;
+			this.minusVersion = -1;
+			this.messages = new Message[16];
+		}
+
+		/**
+		 * Recomputes the difference if either digest has changed since it
+		 * was last computed
+		 */
+		public void refresh() {
+			if (of.version == ofVersion && minus.version == minusVersion) {
+				return;
+			}
+
+			if (messages.length < of.size) {
+				messages = new Message[Math.max(of.size, messages.length * 2)];
+			} else {
+				Arrays.fill(messages, 0, size, null);
+			}
+			size = 0;
+			int j = 0;
+			for (int i = 0; i < of.size; i++) {
+				while (j < minus.size && minus.ids[j] < of.ids[i]) {
+					j++;
+				}
+				if (j == minus.size || minus.ids[j] != of.ids[i]) {
+					messages[size++] = of.messages[i];
+				}
+			}
+			ofVersion = of.version;
+			minusVersion = minus.version;
+		}
+
+		/**
+		 * Returns the number of messages in the difference
+		 * @return The number of messages
+		 */
+		public int size() {
+			return this.size;
+		}
+
+		/**
+		 * Returns a message of the difference
+		 * @param i Index of the message (0...size-1), in message index order
+		 * @return The message
+		 */
+		public Message get(int i) {
+			return messages[i];
+		}
+	}
+}
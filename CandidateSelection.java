@@ -0,0 +1,142 @@
+/*
+ * Released under GPLv3. See LICENSE.txt for details.
+ */
+package routing;
+
+import java.util.Arrays;
+
+import core.Connection;
+import core.Message;
+
+/**
+ * Transfer candidates of a router for one update, selected in phase one of
+ * a {@link ParallelUpdate}. Acknowledgement counts learned from peers are
+ * collected to be recorded when the selection is committed, since the
+ * router's own registry may not change while the peers read it. The
+ * selection also records the state it was made from (a
+ * {@link StateSignature}) so that it can be checked to still hold in
+ * phase two.
+ */
+public class CandidateSelection {
+	/** simulation time of the selection (NaN if there is no selection) */
+	private double time;
+	private TransferPlan candidates;
+	/** delivered registry updates, in the order they were found */
+	private long[] keys;
+	private int[] counts;
+	private double[] expiries;
+	private int nrofUpdates;
+	/** the state the selection was made from */
+	private StateSignature inputs;
+	/** routing decisions counted while selecting */
+	private long[] decisions;
+
+	/**
+	 * Creates a new, empty selection
+	 */
+	public CandidateSelection() {
+		this.time = Double.NaN;
+		this.candidates = new TransferPlan();
+		this.keys = new long[8];
+		this.counts = new int[8];
+		this.expiries = new double[8];
+		this.inputs = new StateSignature();
+		this.decisions = new long[RoutingMetrics.NROF_COUNTERS];
+	}
+
+	/**
+	 * Empties the selection and records the state of the router it is
+	 * about to be made from
+	 * @param router The selecting router (a {@link ParallelUpdate.Selector})
+	 * @param threshold Energy eligibility of the router's peers
+	 * @param time Current simulation time
+	 */
+	public void start(ActiveRouter router, EnergyThreshold threshold,
+			double time) {
+		this.time = time;
+		this.candidates.clear();
+		this.nrofUpdates = 0;
+		Arrays.fill(this.decisions, 0);
+		this.inputs.record(router, threshold, Double.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * Returns true if the selection was made on the given simulation tick
+	 * from the current state of the router and its peers
+	 * @param router The selecting router (a {@link ParallelUpdate.Selector})
+	 * @param threshold Energy eligibility of the router's peers
+	 * @param time Current simulation time
+	 * @return True if the selection can be used
+	 */
+	public boolean isValid(ActiveRouter router,
+			EnergyThreshold threshold, double time) {
+		return this.time == time &&
+			inputs.matches(router, threshold, time);
+	}
+
+	/**
+	 * Adds a transfer candidate
+	 * @param m The message to transfer
+	 * @param con The connection to transfer it over
+	 */
+	public void addCandidate(Message m, Connection con) {
+		candidates.add(m, con);
+	}
+
+	/**
+	 * Counts a routing decision; the counts are added to the router's
+	 * metrics when the selection is committed
+	 * @param counter Index of the {@link RoutingMetrics} counter
+	 */
+	public void count(int counter) {
+		decisions[counter]++;
+	}
+
+	/**
+	 * Counts several routing decisions of the same kind
+	 * @param counter Index of the {@link RoutingMetrics} counter
+	 * @param n Number of decisions
+	 */
+	public void count(int counter, long n) {
+		decisions[counter] += n;
+	}
+
+	/**
+	 * Adds an acknowledgement to record when the selection is committed
+	 * @param key Key of the acknowledged message
+	 * @param count The acknowledgement count
+	 * @param expiry Simulation time when the entry can be forgotten
+	 */
+	public void addDelivered(long key, int count, double expiry) {
+		if (nrofUpdates == keys.length) {
+			keys = Arrays.copyOf(keys, nrofUpdates * 2);
+			counts = Arrays.copyOf(counts, nrofUpdates * 2);
+			expiries = Arrays.copyOf(expiries, nrofUpdates * 2);
+		}
+		keys[nrofUpdates] = key;
+		counts[nrofUpdates] = count;
+		expiries[nrofUpdates] = expiry;
+		nrofUpdates++;
+	}
+
+	/**
+	 * Records the collected acknowledgements to the router's registry and
+	 * the counted decisions to its metrics, and returns the candidates. The
+	 * selection can't be used again after this.
+	 * @param delivered The router's delivered registry
+	 * @param metrics The router's metrics
+	 * @return The transfer candidates in selection order (reused by the
+	 * next selection)
+	 */
+	public TransferPlan commit(
+			DeliveredRegistry delivered, RoutingMetrics metrics) {
+		for (int i = 0; i < nrofUpdates; i++) {
+			delivered.put(keys[i], counts[i], expiries[i]);
+		}
+		for (int i = 0; i < decisions.length; i++) {
+			metrics.add(i, decisions[i]);
+		}
+		this.time = Double.NaN;
+		return candidates;
+	}
+}
@@ -0,0 +1,19 @@
+/*
+ * Released under GPLv3. See LICENSE.txt for details.
+ */
+package routing;
+
+/**
+ * Router that keeps a change epoch, so that the routing decisions made
+ * from its state (by itself or its peers) can be checked to still hold
+ * later. Only {@link MessageRouter}s can implement this.
+ */
+public interface ChangeTracking {
+	/**
+	 * Returns the router's change epoch. The epoch changes whenever
+	 * state that candidate selections (of the router itself or its
+	 * peers) read changes.
+	 * @return The change epoch
+	 */
+	public long getChangeEpoch();
+}
@@ -0,0 +1,28 @@
+/*
+ * Released under GPLv3. See LICENSE.txt for details.
+ */
+package routing;
+
+import java.io.IOException;
+
+/**
+ * Router whose state can be saved to and restored from a
+ * {@link RouterCheckpoint}. Only {@link MessageRouter}s can implement this.
+ */
+public interface Checkpointable {
+	/**
+	 * Writes the router's state, including its buffer (see
+	 * {@link RouterCheckpoint.Output#writeBuffer(MessageRouter)})
+	 * @param out Where to write the state
+	 * @throws IOException if writing fails
+	 */
+	public void writeState(RouterCheckpoint.Output out) throws IOException;
+
+	/**
+	 * Replaces the router's state with the state written by
+	 * {@link #writeState(RouterCheckpoint.Output)}. The router's host is
+	 * connected to the same peers as when the state was written.
+	 * @param in Where to read the state from
+	 */
+	public void readState(RouterCheckpoint.Input in);
+}
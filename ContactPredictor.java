@@ -0,0 +1,281 @@
+/*
+ * Released under GPLv3. See LICENSE.txt for details.
+ */
+package routing;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import core.Connection;
+import core.DTNHost;
+import core.Message;
+
+/**
+ * Contact history of a router: an online estimate of how long its
+ * contacts with each peer last, used to skip transfers that would not
+ * complete before the contact ends. An aborted transfer costs the sender
+ * and the receiver the energy of the part that was sent, for nothing.
+ * <P>The duration estimate of a peer is an exponentially weighted moving
+ * average of the durations of the contacts with it (a plain average
+ * until {@value #MIN_SAMPLES} contacts have been seen), so the history
+ * takes constant memory per peer. Peers with too few contacts use the
+ * average over all the router's contacts. The remaining time of a contact
+ * is predicted to be its estimated duration minus its age; a contact that
+ * has already outlasted its estimate, or one without enough history,
+ * has no prediction and its transfers are never skipped.</P>
+ * <P>The predictor also keeps track of when the router's transfers
+ * started, so that the energy wasted by aborted transfers can be
+ * reported.</P>
+ */
+public class ContactPredictor {
+	/** Contacts seen before a duration estimate is used ({@value}) */
+	public static final int MIN_SAMPLES = 3;
+	/** Weight of the latest contact in the duration estimates ({@value}) */
+	public static final double ALPHA = 0.25;
+
+	private EnergyRouterConfig config;
+	/** duration estimate and number of contacts per peer address */
+	private double[] durations;
+	private int[] samples;
+	/** duration estimate and number of contacts over all peers */
+	private double duration;
+	private int nrofSamples;
+	/** start times of the current contacts and transfers */
+	private Map<Connection, Double> contactStarts;
+	private Map<Connection, Double> transferStarts;
+
+	/**
+	 * Creates a predictor with no history
+	 * @param config The router's energy settings
+	 */
+	public ContactPredictor(EnergyRouterConfig config) {
+		this.config = config;
+		this.durations = new double[16];
+		this.samples = new int[16];
+		this.contactStarts = new HashMap<Connection, Double>();
+		this.transferStarts = new HashMap<Connection, Double>();
+	}
+
+	/**
+	 * Records a connection going up or down; the duration of a contact
+	 * that ended is added to the history
+	 * @param con The connection
+	 * @param host The router's host
+	 * @param now Current simulation time
+	 */
+	public void changedConnection(Connection con, DTNHost host, double now) {
+		if (con.isUp()) {
+			contactStarts.put(con, now);
+			return;
+		}
+
+		/* a transfer still running on the connection is aborted (and
+		 * forgotten) on the next update */
+		Double start = contactStarts.remove(con);
+		if (start == null) {
+			return;
+		}
+		double d = now - start;
+		int address = con.getOtherNode(host).getAddress();
+		if (address >= samples.length) {
+			int size = Math.max(address + 1, samples.length * 2);
+			durations = Arrays.copyOf(durations, size);
+			samples = Arrays.copyOf(samples, size);
+		}
+		durations[address] = average(durations[address], d,
+				++samples[address]);
+		duration = average(duration, d, ++nrofSamples);
+	}
+
+	private static double average(double average, double value, int n) {
+		double weight = Math.max(1.0 / n, ALPHA);
+		return average + weight * (value - average);
+	}
+
+	/**
+	 * Writes the contact history and the start times of the current
+	 * contacts to a checkpoint. Running transfers are not written.
+	 * @param out The checkpoint
+	 * @param host The router's host
+	 * @throws IOException if writing fails
+	 */
+	public void write(RouterCheckpoint.Output out, DTNHost host)
+			throws IOException {
+		out.writeDouble(duration);
+		out.writeInt(nrofSamples);
+		int peers = 0;
+		for (int i = 0; i < samples.length; i++) {
+			if (samples[i] > 0) {
+				peers++;
+			}
+		}
+		out.writeInt(peers);
+		for (int i = 0; i < samples.length; i++) {
+			if (samples[i] > 0) {
+				out.writeInt(i);
+				out.writeDouble(durations[i]);
+				out.writeInt(samples[i]);
+			}
+		}
+		out.writeInt(contactStarts.size());
+		for (Map.Entry<Connection, Double> e : contactStarts.entrySet()) {
+			out.writeHost(e.getKey().getOtherNode(host));
+			out.writeDouble(e.getValue());
+		}
+	}
+
+	/**
+	 * Replaces the contact history with the one written to a checkpoint.
+	 * The router's host must have its connections of the checkpoint.
+	 * @param in The checkpoint
+	 * @param host The router's host
+	 */
+	public void read(RouterCheckpoint.Input in, DTNHost host) {
+		duration = in.readDouble();
+		nrofSamples = in.readInt();
+		Arrays.fill(durations, 0);
+		Arrays.fill(samples, 0);
+		int peers = in.readInt();
+		for (int i = 0; i < peers; i++) {
+			int address = in.readInt();
+			if (address >= samples.length) {
+				int size = Math.max(address + 1, samples.length * 2);
+				durations = Arrays.copyOf(durations, size);
+				samples = Arrays.copyOf(samples, size);
+			}
+			durations[address] = in.readDouble();
+			samples[address] = in.readInt();
+		}
+		contactStarts.clear();
+		transferStarts.clear();
+		int n = in.readInt();
+		for (int i = 0; i < n; i++) {
+			Connection con = in.readConnection(host);
+			double start = in.readDouble();
+			if (con != null) {
+				contactStarts.put(con, start);
+			}
+		}
+	}
+
+	/**
+	 * Returns the predicted remaining time of a contact
+	 * @param con The contact's connection
+	 * @param host The router's host
+	 * @param now Current simulation time
+	 * @return The remaining time in seconds or NaN if there is no
+	 * prediction
+	 */
+	public double getRemaining(Connection con, DTNHost host, double now) {
+		Double start = contactStarts.get(con);
+		if (start == null) {
+			return Double.NaN;
+		}
+
+		double remaining = getEstimate(con, host) - (now - start);
+		return remaining > 0 ? remaining : Double.NaN;
+	}
+
+	/**
+	 * Returns the estimated duration of a contact
+	 * @return The duration or NaN if there is not enough history
+	 */
+	private double getEstimate(Connection con, DTNHost host) {
+		int address = con.getOtherNode(host).getAddress();
+		if (address < samples.length && samples[address] >= MIN_SAMPLES) {
+			return durations[address];
+		} else if (nrofSamples >= MIN_SAMPLES) {
+			return duration;
+		}
+		return Double.NaN;
+	}
+
+	/**
+	 * Returns the time when the first of the current predictions ends:
+	 * after that time its contact has outlasted its estimate, so a
+	 * transfer skipped over it would no longer be skipped
+	 * @param connections The router's connections
+	 * @param host The router's host
+	 * @param now Current simulation time
+	 * @return The time or positive infinity if no prediction ends (or
+	 * contact prediction is disabled)
+	 */
+	public double getPredictionEnd(List<Connection> connections,
+			DTNHost host, double now) {
+		double end = Double.POSITIVE_INFINITY;
+		if (!config.isContactPrediction()) {
+			return end;
+		}
+		for (int i = 0; i < connections.size(); i++) {
+			Connection con = connections.get(i);
+			Double start = contactStarts.get(con);
+			if (start == null) {
+				continue;
+			}
+			double e = start + getEstimate(con, host);
+			if (e > now && e < end) {
+				end = e;
+			}
+		}
+		return end;
+	}
+
+	/**
+	 * Returns true if a transfer should be skipped because it is predicted
+	 * not to complete before the contact ends. Always false if contact
+	 * prediction is disabled.
+	 * @param m The message
+	 * @param con The connection to send it over
+	 * @param host The router's host
+	 * @param now Current simulation time
+	 * @return True if the transfer should not be started
+	 */
+	public boolean isTooShort(Message m, Connection con, DTNHost host,
+			double now) {
+		if (!config.isContactPrediction()) {
+			return false;
+		}
+		double remaining = getRemaining(con, host, now);
+		return !Double.isNaN(remaining) &&
+			getTransferTime(m, con) > remaining;
+	}
+
+	private static double getTransferTime(Message m, Connection con) {
+		return m.getSize() / con.getSpeed();
+	}
+
+	/**
+	 * Records that a transfer started
+	 * @param con The connection of the transfer
+	 * @param now Current simulation time
+	 */
+	public void transferStarted(Connection con, double now) {
+		transferStarts.put(con, now);
+	}
+
+	/**
+	 * Records that a transfer completed
+	 * @param con The connection of the transfer
+	 */
+	public void transferDone(Connection con) {
+		transferStarts.remove(con);
+	}
+
+	/**
+	 * Records that a transfer was aborted
+	 * @param con The connection of the transfer
+	 * @param now Current simulation time
+	 * @return The energy the sender and the receiver spent on the part of
+	 * the transfer that was sent
+	 */
+	public double transferAborted(Connection con, double now) {
+		Double start = transferStarts.remove(con);
+		if (start == null) {
+			return 0;
+		}
+		return 2 * config.getTransmitEnergy() * (now - start);
+	}
+}
@@ -0,0 +1,379 @@
+/* 
+ * Released under GPLv3. See LICENSE.txt for details. 
+ */
+package routing;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import core.Connection;
+import core.DTNHost;
+import core.Message;
+import core.SimClock;
+
+/**
+ * Registry of delivery acknowledgements known to a router. An entry is
+ * keyed by the interned message ID and the source and destination host
+ * addresses packed to a single long, so no strings are built or parsed
+ * when routers look up acknowledgements. Entries expire together with the
+ * message they acknowledge. Each entry retains its message index (see
+ * {@link MessageIndex#retain(int)}), so the index of a message is released
+ * once the message has left the buffers and its acknowledgements have
+ * been purged from all the registries.
+ */
+public class DeliveredRegistry {
+	/** Size of the synthetic acknowledgement messages ({@value}) */
+	public static final int ACK_SIZE = -1;
+	/** How often (simulated seconds) expired entries are purged ({@value}) */
+	public static final double PURGE_INTERVAL = 60;
+	
+	/** key of an unused slot (real keys have a non-zero message part) */
+	private static final long FREE = 0;
+	private static final int INITIAL_CAPACITY = 256;
+	
+	private long[] keys;
+	private double[] expiries;
+	private int[] counts;
+	private int size;
+	private double nextPurge;
+	/** number of changes to the acknowledgement counts */
+	private long version;
+	
+	/**
+	 * Creates a new, empty registry
+	 */
+	public DeliveredRegistry() {
+		this.keys = new long[INITIAL_CAPACITY];
+		this.expiries = new double[INITIAL_CAPACITY];
+		this.counts = new int[INITIAL_CAPACITY];
+		this.nextPurge = SimClock.getTime() + PURGE_INTERVAL;
+	}
+	
+	/**
+	 * Returns the registry key of a message (or of an acknowledgement of it)
+	 * @param m The message
+	 * @return The key
+	 */
+	public static long keyOf(Message m) {
+		return keyOf(m.getId(), m.getFrom().getAddress(), 
+				m.getTo().getAddress());
+	}
+	
+	private static long keyOf(String id, int from, int to) {
+		return ((long)(MessageIndex.of(id) + 1) << 32) | 
+			((from & 0xFFFFL) << 16) | (to & 0xFFFFL);
+	}
+	
+	private static int messageIndexOf(long key) {
+		return (int)(key >>> 32) - 1;
+	}
+	
+	/**
+	 * Returns the simulation time when the acknowledgement of a message can
+	 * be forgotten, i.e. when the message itself has expired
+	 * @param m The message
+	 * @return The expiry time
+	 */
+	public static double expiryOf(Message m) {
+		int ttl = m.getTtl();
+		
+		if (ttl == Integer.MAX_VALUE) {
+			return Double.POSITIVE_INFINITY;
+		}
+		/* TTL is in whole minutes, round up to never expire too early */
+		return SimClock.getTime() + (ttl + 1) * 60.0;
+	}
+	
+	/**
+	 * Creates an acknowledgement for a delivered message. The ack has the
+	 * same ID, source and destination as the message, so its key is the
+	 * key of the message, and it expires with the message.
+	 * <P>Before the registry, the ack was a message from the receiver to
+	 * the previous hop whose ID was the message ID, source and destination
+	 * joined into one string. The ack is still handed straight to the
+	 * previous hop (it is never routed), so only the key encoding changed:
+	 * the source and destination of the ack are now the message's own,
+	 * not the receiver and the previous hop.</P>
+	 * @param m The delivered message
+	 * @return The acknowledgement message
+	 */
+	public static Message createAck(Message m) {
+		Message ack = new Message(m.getFrom(), m.getTo(), m.getId(), ACK_SIZE);
+		int ttl = m.getTtl();
+		
+		if (ttl != Integer.MAX_VALUE) {
+			ack.setTtl(ttl);
+		}
+		return ack;
+	}
+	
+	/**
+	 * Returns true if the message is an acknowledgement message
+	 * @param m The message
+	 * @return True if it is an acknowledgement
+	 */
+	public static boolean isAck(Message m) {
+		return m.getSize() == ACK_SIZE;
+	}
+	
+	/**
+	 * Records a message (or its acknowledgement) as delivered
+	 * @param m The delivered message or its acknowledgement
+	 */
+	public void put(Message m) {
+		put(keyOf(m), 1, expiryOf(m));
+	}
+	
+	/**
+	 * Records an acknowledgement
+	 * @param key Key of the acknowledged message
+	 * @param count How many times the acknowledgement has been passed on
+	 * @param expiry Simulation time when the entry can be forgotten
+	 */
+	public void put(long key, int count, double expiry) {
+		purgeIfDue();
+		
+		int i = indexOf(key);
+		if (keys[i] == FREE) {
+			if ((size + 1) * 2 > keys.length) {
+				grow();
+				i = indexOf(key);
+			}
+			keys[i] = key;
+			size++;
+			MessageIndex.retain(messageIndexOf(key));
+		}
+		counts[i] = count;
+		expiries[i] = expiry;
+		version++;
+	}
+	
+	/**
+	 * Returns the acknowledgement count of a key
+	 * @param key The key
+	 * @return How many times the acknowledgement has been passed on or 0
+	 * if there is no (unexpired) acknowledgement for the key
+	 */
+	public int getCount(long key) {
+		int i = indexOf(key);
+		if (keys[i] == FREE || expiries[i] <= SimClock.getTime()) {
+			return 0;
+		}
+		return counts[i];
+	}
+	
+	/**
+	 * Returns true if there is an unexpired acknowledgement for the key
+	 * @param key The key
+	 * @return True if the message has been delivered
+	 */
+	public boolean contains(long key) {
+		return getCount(key) > 0;
+	}
+	
+	/**
+	 * Returns the version of the registry. The version changes whenever an
+	 * acknowledgement is recorded; purging expired entries does not change
+	 * it since it doesn't change the counts returned by {@link #getCount}.
+	 * @return The version number
+	 */
+	public long getVersion() {
+		return this.version;
+	}
+	
+	/**
+	 * Returns the number of stored acknowledgements
+	 * @return The number of entries (including ones not yet purged)
+	 */
+	public int size() {
+		return this.size;
+	}
+	
+	/**
+	 * Removes the expired entries if the purge interval has passed since
+	 * the last purge
+	 */
+	public void purgeIfDue() {
+		if (SimClock.getTime() >= nextPurge) {
+			purgeExpired(SimClock.getTime());
+		}
+	}
+	
+	/**
+	 * Removes all entries that have expired
+	 * @param now Current simulation time
+	 */
+	public void purgeExpired(double now) {
+		for (int i = 0; i < keys.length; ) {
+			if (keys[i] != FREE && expiries[i] <= now) {
+				removeAt(i); /* may shift a new entry to i; check it again */
+			} else {
+				i++;
+			}
+		}
+		nextPurge = now + PURGE_INTERVAL;
+	}
+	
+	/**
+	 * Deletes a router's buffered messages that its peers have
+	 * acknowledged. The simulated peers' registries are looked up directly
+	 * (an O(1) lookup per message and peer), so only exact acknowledgements
+	 * delete messages and are recorded here. Peers whose routers are not
+	 * {@link Owner}s are skipped.
+	 * @param router The router that owns this registry
+	 * @param buffer Digest of the router's buffer
+	 * @param peers Connections to the peers whose registries to check
+	 * @param scratch An empty list the router reuses for the IDs of the
+	 * messages to delete; it is left empty
+	 * @return The number of deleted messages
+	 */
+	public int purgeAcknowledged(MessageRouter router, BufferDigest buffer,
+			List<Connection> peers, List<String> scratch) {
+		DTNHost host = router.getHost();
+		
+		for (int i = 0; i < buffer.size(); i++) {
+			Message m = buffer.get(i);
+			long key = keyOf(m);
+			for (int j = 0; j < peers.size(); j++) {
+				MessageRouter other = peers.get(j).getOtherNode(host).getRouter();
+				if (!(other instanceof Owner)) {
+					continue;
+				}
+				DeliveredRegistry registry = ((Owner)other).getDelivered();
+				if (registry.contains(key)) {
+					if (!contains(key)) {
+						put(key, 1, expiryOf(m));
+					}
+					scratch.add(m.getId());
+					break;
+				}
+			}
+		}
+		
+		int purged = scratch.size();
+		for (int i = 0; i < purged; i++) {
+			router.deleteMessage(scratch.get(i), false);
+		}
+		scratch.clear();
+		return purged;
+	}
+	
+	/**
+	 * Writes the entries to a checkpoint. The message part of the keys is
+	 * written as the message ID, since message indexes are only valid
+	 * within one run.
+	 * @param out The checkpoint
+	 * @throws IOException if writing fails
+	 */
+	public void write(RouterCheckpoint.Output out) throws IOException {
+		out.writeInt(size);
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != FREE) {
+				out.writeString(MessageIndex.idOf(messageIndexOf(keys[i])));
+				out.writeInt((int)(keys[i] >>> 16) & 0xFFFF);
+				out.writeInt((int)keys[i] & 0xFFFF);
+				out.writeInt(counts[i]);
+				out.writeDouble(expiries[i]);
+			}
+		}
+	}
+	
+	/**
+	 * Replaces the entries with the ones written to a checkpoint
+	 * @param in The checkpoint
+	 */
+	public void read(RouterCheckpoint.Input in) {
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != FREE) {
+				MessageIndex.release(messageIndexOf(keys[i]));
+			}
+		}
+		Arrays.fill(keys, FREE);
+		size = 0;
+		version++;
+		
+		int n = in.readInt();
+		for (int i = 0; i < n; i++) {
+			String id = in.readString();
+			int from = in.readInt();
+			int to = in.readInt();
+			int count = in.readInt();
+			put(keyOf(id, from, to), count, in.readDouble());
+		}
+	}
+	
+	/**
+	 * Returns the slot of a key or the free slot where it should be stored
+	 */
+	private int indexOf(long key) {
+		int mask = keys.length - 1;
+		int i = slot(key, mask);
+		
+		while (keys[i] != FREE && keys[i] != key) {
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+	
+	private static int slot(long key, int mask) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32)) & mask;
+	}
+	
+	/**
+	 * Empties a slot and shifts back the entries of the same probe run
+	 */
+	private void removeAt(int i) {
+		int mask = keys.length - 1;
+		int j = i;
+		
+		MessageIndex.release(messageIndexOf(keys[i]));		
+		while (true) {
+			j = (j + 1) & mask;
+			if (keys[j] == FREE) {
+				break;
+			}
+			int k = slot(keys[j], mask);
+			/* entry at j can stay if its home slot is cyclically in (i, j] */
+			if (i <= j ? (i < k && k <= j) : (i < k || k <= j)) {
+				continue;
+			}
+			keys[i] = keys[j];
+			expiries[i] = expiries[j];
+			counts[i] = counts[j];
+			i = j;
+		}
+		keys[i] = FREE;
+		size--;
+	}
+	
+	private void grow() {
+		long[] oldKeys = keys;
+		double[] oldExpiries = expiries;
+		int[] oldCounts = counts;
+		
+		keys = new long[oldKeys.length * 2];
+		expiries = new double[keys.length];
+		counts = new int[keys.length];
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != FREE) {
+				int j = indexOf(oldKeys[i]);
+				keys[j] = oldKeys[i];
+				expiries[j] = oldExpiries[i];
+				counts[j] = oldCounts[i];
+			}
+		}
+	}
+	
+	/**
+	 * Router that keeps a registry of delivery acknowledgements
+	 */
+	public interface Owner {
+		/**
+		 * Returns the router's registry
+		 * @return The registry
+		 */
+		public DeliveredRegistry getDelivered();
+	}
+}
@@ -0,0 +1,104 @@
+/*
+ * Released under GPLv3. See LICENSE.txt for details.
+ */
+package routing;
+
+import java.util.List;
+
+import util.Tuple;
+import core.Connection;
+import core.DTNHost;
+import core.Message;
+
+/**
+ * Exchange of the messages whose destination is a connected peer, as done
+ * by ActiveRouter's <code>exchangeDeliverableMessages</code> and
+ * <code>requestDeliverableMessages</code>, but without copying the buffer
+ * or collecting (message, connection) tuples on every update. The buffer
+ * is read from the router's {@link BufferDigest}, so the messages are
+ * looked at in message index order. Tuples are only created for the
+ * messages that can actually be delivered, and these are ordered by the
+ * router's send queue mode as before.
+ */
+public class DirectDelivery {
+
+	private DirectDelivery() { }
+
+	/**
+	 * Tries to start a transfer of a message to its destination, first
+	 * from this router and then by asking the peers for theirs
+	 * @param router The router
+	 * @param buffer Digest of the router's buffer
+	 * @param scratch An empty list the router reuses for the deliverable
+	 * messages; it is left empty
+	 * @return The connection of the started transfer or null if none
+	 * started
+	 */
+	public static Connection exchange(ActiveRouter router, BufferDigest buffer,
+			List<Tuple<Message, Connection>> scratch) {
+		List<Connection> connections = router.getConnections();
+		if (connections.size() == 0) {
+			return null;
+		}
+		DTNHost host = router.getHost();
+
+		for (int i = 0; i < buffer.size(); i++) {
+			Message m = buffer.get(i);
+			for (int j = 0; j < connections.size(); j++) {
+				Connection con = connections.get(j);
+				if (con.getOtherNode(host) == m.getTo()) {
+					scratch.add(new Tuple<Message, Connection>(m, con));
+				}
+			}
+		}
+		if (!scratch.isEmpty()) {
+			@SuppressWarnings("unchecked")
+			Tuple<Message, Connection> t = router.tryMessagesForConnected(
+					router.sortByQueueMode(scratch));
+			scratch.clear();
+			if (t != null) {
+				return t.getValue();
+			}
+		}
+
+		/* didn't start a transfer to any node -> ask the peers */
+		for (int j = 0; j < connections.size(); j++) {
+			Connection con = connections.get(j);
+			if (con.getOtherNode(host).requestDeliverableMessages(con)) {
+				return con;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Tries to start a transfer of a message destined to a peer that asks
+	 * for its messages
+	 * @param router The router
+	 * @param buffer Digest of the router's buffer
+	 * @param con The connection to the peer
+	 * @return True if a transfer started
+	 */
+	public static boolean request(ActiveRouter router, BufferDigest buffer,
+			Connection con) {
+		if (router.isTransferring()) {
+			return false;
+		}
+		DTNHost other = con.getOtherNode(router.getHost());
+
+		for (int i = 0; i < buffer.size(); i++) {
+			Message m = buffer.get(i);
+			if (m.getTo() != other) {
+				continue;
+			}
+			if (router.startTransfer(m, con) == MessageRouter.RCV_OK) {
+				return true;
+			}
+			if (i >= buffer.size() || buffer.get(i) != m) {
+				i--; /* the refused message was deleted, the next one moved
+				      * to its place */
+			}
+		}
+		return false;
+	}
+}
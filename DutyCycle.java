@@ -0,0 +1,175 @@
+/*
+ * Released under GPLv3. See LICENSE.txt for details.
+ */
+package routing;
+
+import java.io.IOException;
+
+import core.DTNHost;
+import core.Message;
+import core.ModuleCommunicationBus;
+import core.NetworkInterface;
+
+/**
+ * Energy-driven duty cycle of a router. The host's own energy level falls
+ * through the configured bands (see
+ * {@link EnergyRouterConfig#getDutyCycleBands()}); in band <i>i</i> the
+ * router only does its routing work every <i>interval[i]</i> seconds
+ * instead of on every tick, and the host's network interfaces only scan
+ * that often: the duty cycle sets the scan interval on the host's ComBus
+ * ({@link NetworkInterface#SCAN_INTERVAL_ID}), so the host really forms
+ * fewer connections and the energy model charges fewer scans. Transfers
+ * and the energy model are still updated on every tick, and a sleeping
+ * router routes whenever it is transferring. In any duty-cycled band the
+ * router refuses relay traffic,
+ * but it still accepts messages addressed to its own host, and such a
+ * message wakes it up for the next tick.
+ */
+public class DutyCycle {
+	/** tolerance for the accumulated rounding error of the clock */
+	private static final double TIME_EPSILON = 1e-6;
+
+	private EnergyRouterConfig config;
+	/** simulation time of the next update in a duty-cycled band */
+	private double nextWake;
+	/** band whose scan interval the interfaces have */
+	private int scanBand;
+	/** the interfaces' own scan interval, read when first duty cycled */
+	private double baseScanInterval;
+
+	/**
+	 * Creates a duty cycle
+	 * @param config The router's energy settings
+	 */
+	public DutyCycle(EnergyRouterConfig config) {
+		this.config = config;
+		this.nextWake = Double.NEGATIVE_INFINITY;
+		this.scanBand = 0;
+		this.baseScanInterval = Double.NaN;
+	}
+
+	/**
+	 * Returns the duty cycle band of an energy level
+	 * @param energy The energy level
+	 * @return 0 if the level is above all the bands (no duty cycling),
+	 * otherwise the number of the lowest band the level is at or below
+	 * (1, 2...)
+	 */
+	public int getBand(double energy) {
+		double[] bands = config.getDutyCycleBands();
+		int band = 0;
+		while (band < bands.length && energy <= bands[band]) {
+			band++;
+		}
+		return band;
+	}
+
+	/**
+	 * Returns the duty cycle band of a router's host
+	 * @param host The host
+	 * @return The band (0 if the host is not duty cycled)
+	 */
+	public int getBand(DTNHost host) {
+		if (config.getDutyCycleBands().length == 0) {
+			return 0;
+		}
+		return getBand(EnergyView.getEnergy(host));
+	}
+
+	/**
+	 * Sets the scan interval of the host's interfaces for the host's
+	 * current band if the band has changed. In band <i>i</i> the interval
+	 * is <i>interval[i]</i> (or the interfaces' own interval if that is
+	 * longer); in band 0 the interfaces' own interval is restored. Does
+	 * nothing if the interfaces have no scan interval on the ComBus.
+	 * @param host The router's host
+	 */
+	public void adjustScanning(DTNHost host) {
+		int band = getBand(host);
+		if (band == scanBand) {
+			return;
+		}
+		ModuleCommunicationBus comBus = host.getComBus();
+		if (!comBus.containsProperty(NetworkInterface.SCAN_INTERVAL_ID)) {
+			return;
+		}
+		if (Double.isNaN(baseScanInterval)) {
+			baseScanInterval = comBus.getDouble(
+					NetworkInterface.SCAN_INTERVAL_ID, 0);
+		}
+		double interval = baseScanInterval;
+		if (band > 0) {
+			interval = Math.max(interval,
+					config.getDutyCycleIntervals()[band - 1]);
+		}
+		comBus.updateProperty(NetworkInterface.SCAN_INTERVAL_ID, interval);
+		scanBand = band;
+	}
+
+	/**
+	 * Returns true if a router should do its routing work on this tick. Does
+	 * not change the state of the duty cycle, so it can be asked more than
+	 * once per tick.
+	 * @param router The router
+	 * @param now Current simulation time
+	 * @return True if the router is awake
+	 */
+	public boolean isDue(ActiveRouter router, double now) {
+		return getBand(router.getHost()) == 0 || router.isTransferring() ||
+			now >= nextWake - TIME_EPSILON;
+	}
+
+	/**
+	 * Records that a router did its routing work, scheduling the next time
+	 * @param router The router
+	 * @param now Current simulation time
+	 */
+	public void ran(ActiveRouter router, double now) {
+		int band = getBand(router.getHost());
+		if (band > 0) {
+			nextWake = now + config.getDutyCycleIntervals()[band - 1];
+		}
+	}
+
+	/**
+	 * Wakes the router up for its next update
+	 */
+	public void wake() {
+		nextWake = Double.NEGATIVE_INFINITY;
+	}
+
+	/**
+	 * Writes the time of the next wake-up to a checkpoint. The scan interval
+	 * is not written: it is set again on the first update after a restore.
+	 * @param out The checkpoint
+	 * @throws IOException if writing fails
+	 */
+	public void write(RouterCheckpoint.Output out) throws IOException {
+		out.writeDouble(nextWake);
+	}
+
+	/**
+	 * Replaces the time of the next wake-up with the one written to a
+	 * checkpoint
+	 * @param in The checkpoint
+	 */
+	public void read(RouterCheckpoint.Input in) {
+		nextWake = in.readDouble();
+	}
+
+	/**
+	 * Checks an incoming message against the duty cycle. A message
+	 * addressed to the host wakes the router up; other messages are refused
+	 * while the host is in a duty-cycled band.
+	 * @param m The message
+	 * @param host The router's host
+	 * @return True if the message can be received
+	 */
+	public boolean accepts(Message m, DTNHost host) {
+		if (m.getTo() == host) {
+			wake();
+			return true;
+		}
+		return getBand(host) == 0;
+	}
+}
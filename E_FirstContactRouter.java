@@ -9,23 +9,31 @@ package routing;
 import core.Connection;
 import core.DTNHost;
 import core.Message;
+import core.MessageListener;
 import core.Settings;
+import core.SimClock;
 
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map; ///
 import java.util.Set;
 
-import routing.util.EnergyModel; ///
 import util.Tuple;
 
 /**
  * First contact router which uses only a single copy of the message 
  * (or fragments) and forwards it to the first available contact.
  */
-public class E_FirstContactRouter extends ActiveRouter {
+public class E_FirstContactRouter extends ActiveRouter 
+		implements ChangeTracking, Checkpointable {
 	
 	/**
 	 * Constructor. Creates a new message router based on the settings in
@@ -33,17 +41,37 @@ public class E_FirstContactRouter extends ActiveRouter {
 	 * @param s The settings object
 	 */
 	public Map<String, Integer> delivered; 
-	private static double battery_level_threshold; 
-	
-	static 
-	{
-		Settings s = new Settings(); 
-		battery_level_threshold = s.getInt("E_FirstContactRouter.battery_level_threshold"); 
-	}
+	/** energy settings, shared with the prototype */
+	private EnergyRouterConfig config;
+	/** energy eligibility of the peers */
+	private EnergyThreshold threshold;
+	/** ranks the transfer candidates by benefit per energy */
+	private TransmissionScheduler scheduler;
+	/** contact durations of the peers and the running transfers */
+	private ContactPredictor contacts;
+	/** lowers the update rate when the host's energy runs low */
+	private DutyCycle dutyCycle;
 	
+	/** Messages still to be offered over each connection, in offer order */
+	private Map<Connection, Deque<Message>> candidates;
+	/** Energy eligibility of each connection's peer when its queue was built */
+	private Map<Connection, Boolean> peerEligible;
+	/** the buffered messages in message index order */
+	private BufferDigest digest;
+	/** deliverable messages, reused between updates */
+	private List<Tuple<Message, Connection>> deliverable;
+	/** number of buffered messages destined to each host, by address */
+	private int[] destinedTo;
+	/** counters of the routing decisions */
+	private RoutingMetrics metrics;
+	/** changes whenever the buffer or the connections change */
+	private long changeEpoch;
+	/** the state of the last update that started no transfer */
+	private StateSignature quiet;
 	
 	public E_FirstContactRouter(Settings s) {
 		super(s);
+		this.config = new EnergyRouterConfig(s, "E_FirstContactRouter");
 	}
 	
 	/**
@@ -52,11 +80,34 @@ public class E_FirstContactRouter extends ActiveRouter {
 	 */
 	protected E_FirstContactRouter(E_FirstContactRouter r) {
 		super(r);
+		this.config = r.config;
+		this.threshold = new EnergyThreshold(r.config);
+		this.scheduler = new TransmissionScheduler(r.config);
+		this.contacts = new ContactPredictor(r.config);
+		this.dutyCycle = new DutyCycle(r.config);
+		this.candidates = new HashMap<Connection, Deque<Message>>();
+		this.peerEligible = new HashMap<Connection, Boolean>();
+		this.digest = new BufferDigest();
+		this.deliverable = new ArrayList<Tuple<Message, Connection>>();
+		this.destinedTo = new int[16];
+		this.quiet = new StateSignature();
+	}
+	
+	@Override
+	public void init(DTNHost host, List<MessageListener> mListeners) {
+		super.init(host, mListeners);
+		this.metrics = RoutingMetrics.register(this);
 	}
 	
 	@Override
 	protected int checkReceiving(Message m, DTNHost from) {
-		int recvCheck = super.checkReceiving(m, from); 
+		int recvCheck;
+		
+		if (!dutyCycle.accepts(m, getHost())) {
+			metrics.increment(RoutingMetrics.DUTY_CYCLE_REFUSALS);
+			return DENIED_LOW_RESOURCES; /* duty cycling, no relaying */
+		}
+		recvCheck = super.checkReceiving(m, from); 
 		
 		
 		if (recvCheck == RCV_OK) { //\i.e ==0
@@ -71,64 +122,298 @@ public class E_FirstContactRouter extends ActiveRouter {
 			
 	@Override
 	public void update() {
-		super.update();
+		if (RouterCheckpoint.isPending()) {
+			return; /* fast-forwarding to a checkpoint */
+		}
+		dutyCycle.adjustScanning(getHost());
+		super.update(); /* transfers and energy, also when asleep */
+		if (!dutyCycle.isDue(this, SimClock.getTime())) {
+			metrics.increment(RoutingMetrics.SLEPT_UPDATES);
+			return; /* duty cycling, no routing on this tick */
+		}
+		dutyCycle.ran(this, SimClock.getTime());
 		if (isTransferring() || !canStartTransfer()) {
 			return; 
 		}		
+		if (quiet.matches(this, threshold, SimClock.getTime())) {
+			metrics.increment(RoutingMetrics.QUIET_UPDATES);
+			return; /* nothing changed, the same transfers would fail */
+		}
 			
 		if (exchangeDeliverableMessages() != null) {
 			return; 
 		}
 		
-		tryOtherMessages();
+		if (tryOtherMessages() == null) {
+			/* skip the next updates until something changes */
+			quiet.record(this, threshold, contacts.getPredictionEnd(
+					getConnections(), getHost(), SimClock.getTime()));
+		}
 	}
 	
-	private Tuple<Message, Connection> tryOtherMessages(){
-		List<Tuple<Message, Connection>> messages = new ArrayList<Tuple<Message, Connection>>();
-		Collection<Message> msgCollection = getMessageCollection();
+	/**
+	 * Offers the next queued message on each connection until one transfer
+	 * starts. Queues are only rebuilt when a connection comes up or the
+	 * peer's energy crosses the battery level threshold, so the cost of a
+	 * tick does not depend on the buffer size.
+	 * @return The connection of the started transfer or null
+	 */
+	private Connection tryOtherMessages(){
+		List<Connection> connections = getConnections();
 		
-		for (Connection con : getConnections())
+		for (int c = 0; c < connections.size(); c++)
 		{
+			Connection con = connections.get(c);
 			DTNHost other = con.getOtherNode(getHost());
 			E_FirstContactRouter othRouter = (E_FirstContactRouter) other.getRouter();
 			if (othRouter.isTransferring())
 			{
 				continue;
 			}
-			// obtain neighbour node's energy value
-			double nn_energy = (double) othRouter.getHost().getComBus().getProperty(EnergyModel.ENERGY_VALUE_ID);
-			// go through all messages in current node's buffer
-			for (Message m : msgCollection)
+			// check if neighbour node's energy value is above the threshold
+			boolean eligible = threshold.isEligible(other);
+			if (!eligible)
+			{
+				/* the queue leaves out the messages the peer may not relay;
+				 * count them per offer round, like the other routers */
+				metrics.add(RoutingMetrics.LOW_ENERGY_SKIPS, 
+						getNrofMessages() - getNrofDestinedTo(other));
+			}
+			
+			Deque<Message> queue = candidates.get(con);
+			if (queue == null || peerEligible.get(con) != eligible)
+			{
+				queue = buildQueue(con, eligible);
+			}
+			
+			/* each queued message is offered at most once per tick */
+			for (int tries = queue.size(); tries > 0 && !queue.isEmpty(); tries--)
 			{
-				
-				DTNHost dest = m.getTo();
-				
-				//check if neighbour node's energy value is less than 
-				//minimum energy threshold and not the destination node
-				if (nn_energy < this.battery_level_threshold && !dest.equals(other))
+				/* polled before the offer: startTransfer may delete the
+				 * message, which takes it out of all the queues */
+				Message m = queue.pollFirst();
+				metrics.increment(RoutingMetrics.CANDIDATES);
+				if (contacts.isTooShort(m, con, getHost(), SimClock.getTime()))
 				{
+					/* try the shorter ones first, the contact may still
+					 * outlast its prediction */
+					metrics.increment(RoutingMetrics.SHORT_CONTACT_SKIPS);
+					queue.addLast(m);
 					continue;
 				}
-				if(dest.equals(other))
+				int retVal = startTransfer(m, con);
+				if (retVal == RCV_OK)
+				{
+					queue.addFirst(m); /* offered again if aborted */
+					return con;
+				}
+				if (retVal > 0)
 				{
-					messages.add(new Tuple<Message, Connection>(m, con));
+					queue.addFirst(m);
+					break; /* peer busy, try again on a later tick */
 				}
-				
-				else
+				/* the peer refused the message: never offer it again if it
+				 * has already seen it, otherwise retry after the others */
+				if (retVal == DENIED_OLD)
 				{
-					messages.add(new Tuple<Message, Connection>(m, con)); 
-				}										
-			}				
+					metrics.increment(RoutingMetrics.HAS_MESSAGE_SKIPS);
+				}
+				if (retVal != DENIED_OLD && retVal != DENIED_DELIVERED &&
+						hasMessage(m.getId()))
+				{
+					queue.addLast(m);
+				}
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * (Re)builds the offer queue of a connection from the current buffer.
+	 * If the peer is below the battery level threshold, only the messages
+	 * destined to the peer itself are queued. If transfers are scheduled,
+	 * the best scheduled messages are queued first and the rest in buffer
+	 * order after them.
+	 * @param con The connection
+	 * @param eligible True if the peer is above the energy threshold
+	 * @return The new queue
+	 */
+	private Deque<Message> buildQueue(Connection con, boolean eligible) {
+		DTNHost other = con.getOtherNode(getHost());
+		Set<Message> ordered = new LinkedHashSet<Message>();
+		List<Tuple<Message, Connection>> pairs = 
+			new ArrayList<Tuple<Message, Connection>>();
+		
+		for (Message m : getMessageCollection()) {
+			if (eligible || m.getTo() == other) {
+				pairs.add(new Tuple<Message, Connection>(m, con));
+			}
+		}
+		if (scheduler.isEnabled()) {
+			for (Tuple<Message, Connection> t : scheduler.schedule(getHost(), 
+					pairs, SimClock.getTime())) {
+				ordered.add(t.getKey());
+			}
+		}
+		for (Tuple<Message, Connection> t : pairs) {
+			ordered.add(t.getKey());
+		}
+		Deque<Message> queue = new ArrayDeque<Message>(ordered);
+		candidates.put(con, queue);
+		peerEligible.put(con, eligible);
+		return queue;
+	}
+	
+	@Override
+	public void changedConnection(Connection con) {
+		super.changedConnection(con);
+		changeEpoch++;
+		contacts.changedConnection(con, getHost(), SimClock.getTime());
+		if (con.isUp()) {
+			threshold.encountered(con.getOtherNode(getHost()));
+		}
+		
+		/* queues of new connections are built on the next tick, once the
+		 * peer's energy has been checked */
+		candidates.remove(con);
+		peerEligible.remove(con);
+	}
+	
+	@Override
+	protected void addToMessages(Message m, boolean newMessage) {
+		super.addToMessages(m, newMessage);
+		changeEpoch++;
+		digest.add(m);
+		int to = m.getTo().getAddress();
+		if (to >= destinedTo.length) {
+			destinedTo = Arrays.copyOf(destinedTo, 
+					Math.max(to + 1, destinedTo.length * 2));
+		}
+		destinedTo[to]++;
+		
+		for (Map.Entry<Connection, Deque<Message>> e : candidates.entrySet()) {
+			Connection con = e.getKey();
+			if (peerEligible.get(con) || m.getTo() == con.getOtherNode(getHost())) {
+				e.getValue().addLast(m);
+			}
+		}
+	}
+	
+	@Override
+	protected Message removeFromMessages(String id) {
+		Message m = super.removeFromMessages(id);
+		
+		if (m != null) {
+			changeEpoch++;
+			digest.remove(id);
+			destinedTo[m.getTo().getAddress()]--;
+			for (Deque<Message> queue : candidates.values()) {
+				queue.remove(m);
+			}
+		}
+		return m;
+	}
+	
+	/**
+	 * Returns the number of buffered messages destined to a host
+	 * @param host The host
+	 * @return The number of messages
+	 */
+	private int getNrofDestinedTo(DTNHost host) {
+		int address = host.getAddress();
+		return address < destinedTo.length ? destinedTo[address] : 0;
+	}
+	
+	public long getChangeEpoch() {
+		return this.changeEpoch;
+	}
+	
+	@Override
+	public boolean createNewMessage(Message m) {
+		boolean created = super.createNewMessage(m);
+		if (created) {
+			RouterCheckpoint.created(this, m);
 		}
-		return tryMessagesForConnected(messages);
+		return created;
 	}
 	
+	public void writeState(RouterCheckpoint.Output out) throws IOException {
+		out.writeBuffer(this);
+		threshold.write(out);
 		
+		/* the offer queues, so that the offers go on in the same order */
+		out.writeInt(candidates.size());
+		for (Map.Entry<Connection, Deque<Message>> e : candidates.entrySet()) {
+			out.writeHost(e.getKey().getOtherNode(getHost()));
+			out.writeBoolean(peerEligible.get(e.getKey()));
+			out.writeInt(e.getValue().size());
+			for (Message m : e.getValue()) {
+				out.writeString(m.getId());
+			}
+		}
+		contacts.write(out, getHost());
+		dutyCycle.write(out);
+	}
 	
+	public void readState(RouterCheckpoint.Input in) {
+		in.readBuffer(this);
+		threshold.read(in);
+		
+		candidates.clear();
+		peerEligible.clear();
+		int n = in.readInt();
+		for (int i = 0; i < n; i++) {
+			Connection con = in.readConnection(getHost());
+			boolean eligible = in.readBoolean();
+			int size = in.readInt();
+			Deque<Message> queue = new ArrayDeque<Message>(size);
+			for (int j = 0; j < size; j++) {
+				Message m = getMessage(in.readString());
+				if (m != null) {
+					queue.addLast(m);
+				}
+			}
+			if (con != null) {
+				candidates.put(con, queue);
+				peerEligible.put(con, eligible);
+			}
+		}
+		contacts.read(in, getHost());
+		dutyCycle.read(in);
+	}
 	
+	@Override
+	protected Connection exchangeDeliverableMessages() {
+		return DirectDelivery.exchange(this, digest, deliverable);
+	}
+	
+	@Override
+	public boolean requestDeliverableMessages(Connection con) {
+		return DirectDelivery.request(this, digest, con);
+	}
+	
+	@Override
+	protected int startTransfer(Message m, Connection con) {
+		int retVal = super.startTransfer(m, con);
+		if (retVal == RCV_OK) {
+			contacts.transferStarted(con, SimClock.getTime());
+		}
+		return retVal;
+	}
+	
+	@Override
+	protected void transferAborted(Connection con) {
+		super.transferAborted(con);
+		changeEpoch++;
+		metrics.increment(RoutingMetrics.ABORTED_TRANSFERS);
+		metrics.addEnergy(RoutingMetrics.ABORTED_ENERGY, 
+				contacts.transferAborted(con, SimClock.getTime()));
+	}
 	
 	@Override
 	protected void transferDone(Connection con) {
+		changeEpoch++;
+		contacts.transferDone(con);
 		/* don't leave a copy for the sender */
 		this.deleteMessage(con.getMessage().getId(), false);
 	}
@@ -6,18 +6,18 @@
  */
 package routing;
 
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
 import java.util.ArrayList;
 import java.util.Random;
 import java.lang.Math;
 import core.*;
-import routing.util.EnergyModel;
+import movement.MovementModel;
 import util.Tuple;
 
 /**
@@ -40,16 +40,26 @@ import util.Tuple;
  */
 
 public class E_FloatingContentRouter extends ActiveRouter
+	implements Checkpointable, DeliveredRegistry.Owner
 {
 	
-	public Map<String, Integer> delivered;
+	public DeliveredRegistry delivered;
 	
 	private void initDelivered()  
 	{
-		this.delivered = new HashMap<>(200);
+		this.delivered = new DeliveredRegistry();
 	}
 	
-	private static double battery_level_threshold; 
+	/* energy settings, shared with the prototype */
+	private EnergyRouterConfig config;
+	/* energy eligibility of the peers */
+	private EnergyThreshold threshold;
+	/* ranks the planned transfers by benefit per energy */
+	private TransmissionScheduler scheduler;
+	/* contact durations of the peers and the running transfers */
+	private ContactPredictor contacts;
+	/* lowers the update rate when the host's energy runs low */
+	private DutyCycle dutyCycle;
 	
 	public static final int REPL_FIFO  = 0;
 	public static final int REPL_RND   = 1;
@@ -107,6 +117,7 @@ public class E_FloatingContentRouter extends ActiveRouter
 	public static final String FC_LOCATION_UPDATE_INTERVAL = "locationUpdate";
 	public static final String FC_LOCATION_SOURCE = "locationSource";
 	public static final String FC_LOCATION_RATIO  = "locationRatio";
+	public static final String FC_MAX_SPEED = "maxSpeed";
 
 	/** Message property keys */ 
 
@@ -122,7 +133,40 @@ public class E_FloatingContentRouter extends ActiveRouter
 	protected Random replRng;
 	protected Random delRng;
 
-	private List<Connection>   new_conns = new ArrayList<Connection> ();
+	private Set<Connection>    new_conns = new LinkedHashSet<Connection> ();
+	/* new connections whose peer's delivered registry is still unchecked */
+	private List<Connection>   summary_conns = new ArrayList<Connection> ();
+	/* anchor distances and radii of the buffered messages for one round of encounters */
+	private String []          enc_ids = new String [16];
+	private double []          enc_h = new double [16];
+	private double []          enc_r = new double [16];
+	private double []          enc_a = new double [16];
+	/* buffered messages in replication order for the sorting policies */
+	private SortedMessageList  prioritised = new SortedMessageList ();
+	/* anchor zones of the buffered messages for the immediate deletion policy */
+	private AnchorZoneIndex    anchor_zones = new AnchorZoneIndex ();
+	/* the transfers to offer in one update, reused between updates */
+	private TransferPlan       plan = new TransferPlan ();
+	/* messages whose transfer started in the current plan */
+	private List<Message>      plan_started = new ArrayList<Message> ();
+	/* scratch lists and locations of update (), reused between updates */
+	private List<Message>      ordered = new ArrayList<Message> ();
+	private Set<String>        deleted = new LinkedHashSet<String> ();
+	private List<String>       exited = new ArrayList<String> ();
+	private List<String>       purged = new ArrayList<String> ();
+	/* the buffer in its collection order, and the digest version it was copied at */
+	private List<Message>      buffer_order = new ArrayList<Message> ();
+	private long               buffer_order_version = -1;
+	private List<Tuple<Message, Connection>> deliverable = new ArrayList<Tuple<Message, Connection>> ();
+	private Coord              no_location = new Coord (-1, -1);
+	/* this host's row of the per-tick location table, read by the peers too */
+	private TickLocation       tick_location = new TickLocation ();
+	/* the buffered messages in message index order */
+	private BufferDigest       digest = new BufferDigest ();
+	/* highest speed of any host; bounds how fast a host can leave an anchor zone */
+	private double max_speed = Double.POSITIVE_INFINITY;
+	/* counters of the routing decisions */
+	private RoutingMetrics metrics;
 	
 	private double gpsLastReading = 0;
 	private double gpsUpdateInterval = 0;
@@ -234,7 +278,28 @@ public class E_FloatingContentRouter extends ActiveRouter
 			location_update_interval = 0;
 			location_error = false;
 		}
-		battery_level_threshold = s.getInt("E_FloatingContentRouter.battery_level_threshold"); //
+		if (fcSettings.contains (FC_MAX_SPEED))
+		    max_speed = fcSettings.getDouble (FC_MAX_SPEED);
+		else
+		    max_speed = getMaxGroupSpeed ();
+		config = new EnergyRouterConfig (s, FC_NS);
+	}
+
+	/* The highest speed of any host group (Group[N].speed); no host can approach
+	 * an anchor zone boundary faster than this.
+	 */
+	private static double getMaxGroupSpeed () {
+		Settings scenario = new Settings (SimScenario.SCENARIO_NS);
+		int      groups = scenario.getInt (SimScenario.NROF_GROUPS_S);
+		double   max = 0;
+
+		for (int i = 1; i <= groups; i++) {
+			Settings group = new Settings (SimScenario.GROUP_NS + i);
+			group.setSecondaryNamespace (SimScenario.GROUP_NS);
+			if (group.contains (MovementModel.SPEED))
+				max = Math.max (max, group.getCsvDoubles (MovementModel.SPEED, 2) [1]);
+		}
+		return max > 0 ? max : Double.POSITIVE_INFINITY;
 	}
 
 	/**
@@ -243,6 +308,11 @@ public class E_FloatingContentRouter extends ActiveRouter
 	 */
 	protected E_FloatingContentRouter(E_FloatingContentRouter r) {
 		super(r);
+		this.config = r.config;
+		this.threshold = new EnergyThreshold (r.config);
+		this.scheduler = new TransmissionScheduler (r.config);
+		this.contacts = new ContactPredictor (r.config);
+		this.dutyCycle = new DutyCycle (r.config);
 		this.seed = r.seed;
 		this.deletion_policy = r.deletion_policy;
 		this.replication_policy = r.replication_policy;
@@ -254,6 +324,7 @@ public class E_FloatingContentRouter extends ActiveRouter
 		this.location_error_max = r.location_error_max;
 		this.last_known_location = r.last_known_location;
 		this.ratio = r.ratio;
+		this.max_speed = r.max_speed;
 		if (ratio == 1.0 || E_FloatingContentRouter.locRng.nextDouble () < ratio) {
 		    this.location_update_interval = r.location_update_interval;
 		    this.location_error = r.location_error;
@@ -274,18 +345,91 @@ public class E_FloatingContentRouter extends ActiveRouter
 		 */
 	        msg.addProperty (FC_SRCLOC, getHost().getLocation ());
 		super.createNewMessage (msg);
+		RouterCheckpoint.created (this, msg);
 		return true;
 	}
 
+	@Override
+	protected void addToMessages (Message m, boolean newMessage) {
+		super.addToMessages (m, newMessage);
+		digest.add (m);
+		if (isPrioritised ())
+			prioritised.add (m, priorityKey (m));
+		if (deletion_policy == DEL_IMMEDIATE)
+			anchor_zones.add (m.getId (), (Coord) m.getProperty (FC_ANCHOR),
+			    (Double) m.getProperty (FC_A), SimClock.getTime ());
+	}
+
+	@Override
+	protected Message removeFromMessages (String id) {
+		Message removed = super.removeFromMessages (id);
+		if (removed != null)
+			digest.remove (id);
+		if (removed != null && isPrioritised ())
+			prioritised.remove (removed);
+		if (removed != null && deletion_policy == DEL_IMMEDIATE)
+			anchor_zones.remove (id);
+		return removed;
+	}
+
+	/* Returns true if the replication policy orders messages by priority key */
+	private boolean isPrioritised () {
+		return replication_policy != REPL_FIFO && replication_policy != REPL_RND;
+	}
+
+	/* The replication priority of a message; smaller keys are replicated first.
+	 * saf: area, svf[2]: area x size, stf[2]: area x size x ttl; the "2" variants
+	 * use the squared radius.  Computed once when the message enters the buffer.
+	 */
+	protected double priorityKey (Message m) {
+		double  a, k;
+
+		a = (Double) m.getProperty (FC_A);
+		switch (replication_policy) {
+		case REPL_SAF:
+			return a;
+		case REPL_SVF:
+			return a * (double) m.getSize ();
+		case REPL_SVF2:
+			return a * a * (double) m.getSize ();
+		case REPL_STF:
+			k = a;
+			k *= (Double) m.getProperty (FC_TTL_VAL);
+			k *= m.getSize ();
+			return k;
+		case REPL_STF2:
+			k = a;
+			k *= k;
+			k *= (Double) m.getProperty (FC_TTL_VAL);
+			k *= m.getSize ();
+			return k;
+		default:
+			return 0;
+		}
+	}
+
+	@Override
+	public void init (DTNHost host, List<MessageListener> mListeners) {
+		super.init (host, mListeners);
+		this.metrics = RoutingMetrics.register (this);
+	}
+
 	/* Some functions should be carried out only once per encounter.
 	 * Record the new encounters here for later use in update()
 	 */
 	@Override
 	public void changedConnection (Connection conn) {
 		super.changedConnection (conn);
+		contacts.changedConnection (conn, getHost (), SimClock.getTime ());
 
 		if (conn.isUp ()) {
 			new_conns.add (conn);
+			summary_conns.add (conn);
+			threshold.encountered (conn.getOtherNode (getHost ()));
+		} else {
+			/* may be still pending if update () has returned early */
+			new_conns.remove (conn);
+			summary_conns.remove (conn);
 		}
 	}
 
@@ -293,15 +437,25 @@ public class E_FloatingContentRouter extends ActiveRouter
 	public void update() {
 
 	        Coord loc, peer_loc;
-		List<Connection> connections, conn_list;
+		List<Connection> connections;
 		int n;
-		Collection<Message> m_set, m_set2;
-		List<Message> m_list, m_ordered_list;
-		List<String> d_list, d_list2;
-		double distance_curr;
+		Collection<Message> m_set;
+		List<Message> m_ordered_list;
+		List<String> d_list2;
+		Set<String> d_list;
+		/* the lists and locations are reused, so that an update doesn't allocate */
 		boolean location_valid = (location_source == LOC_SRC_GPS);
 
-		super.update();
+		if (RouterCheckpoint.isPending ())
+			return; /* fast-forwarding to a checkpoint */
+		dutyCycle.adjustScanning (getHost ());
+		super.update(); /* transfers and energy, also when asleep */
+		if (!dutyCycle.isDue (this, SimClock.getTime ())) {
+			/* duty cycling, no routing on this tick */
+			metrics.increment (RoutingMetrics.SLEPT_UPDATES);
+			return;
+		}
+		dutyCycle.ran (this, SimClock.getTime ());
 
 		if (rng == null)
 			rng = new Random (getHost().getAddress()*1000+seed);
@@ -310,6 +464,8 @@ public class E_FloatingContentRouter extends ActiveRouter
 		if (delRng == null)
 			delRng = new Random (getHost().getAddress()*10000+seed);
 
+		purgeDelivered ();
+
 		if (location_valid) {
 		    loc = getLocation ();
 
@@ -319,23 +475,19 @@ public class E_FloatingContentRouter extends ActiveRouter
 
 			if (this.getNrofMessages() > 0 && !isTransferring()) {
 
-				m_set2 = this.getMessageCollection();
-				d_list2 = new ArrayList<String> ();
+				/* only the anchor zones whose boundary could have been reached
+				 * since they were last checked are checked again */
+				d_list2 = exited;
+				anchor_zones.collectExited (loc, SimClock.getTime (),
+				    location_error ? Double.POSITIVE_INFINITY : max_speed, d_list2);
 
-				for (Message m : m_set2) {
-					distance_curr = loc.distance ((Coord) m.getProperty (FC_ANCHOR));
-					if  (distance_curr > (Double) m.getProperty (FC_A)) {
-						d_list2.add (m.getId ());
-					}
-				}
-
-				for (String id : d_list2)
-					this.deleteMessage (id, false);
+				for (int i = 0; i < d_list2.size (); i++)
+					this.deleteMessage (d_list2.get (i), false);
 				d_list2.clear();
 			}
 		    }
 		} else {
-		    loc = new Coord (-1, -1);
+		    loc = no_location;
 		} /* location_source == LOC_SRC_GPS */
 
 		if (isTransferring() || !canStartTransfer()) {
@@ -343,11 +495,9 @@ public class E_FloatingContentRouter extends ActiveRouter
 		}
 
 		connections = getHost().getConnections();
-		conn_list = new ArrayList<Connection> ();
-		m_list = new ArrayList<Message> ();
-		m_ordered_list = new ArrayList<Message> ();
+		m_ordered_list = ordered;
 		m_set = this.getMessageCollection();
-		d_list = new ArrayList<String> ();
+		d_list = deleted;
 
 		/* If we do not have an own notion of a location, we infer our location as the mean of the nodes
 		 * we are connected to.  This can be done in reality if the other nodes broadcast beacons with their
@@ -357,7 +507,8 @@ public class E_FloatingContentRouter extends ActiveRouter
 		    double x = 0, y = 0;
 
 		    n = 0;
-		    for (Connection c : connections) {
+		    for (int i = 0; i < connections.size (); i++) {
+			Connection c = connections.get (i);
 			if (((E_FloatingContentRouter) c.getOtherNode (getHost ()).getRouter ()).getLocationSource () == LOC_SRC_GPS) {
 			    peer_loc = ((E_FloatingContentRouter) (c.getOtherNode (getHost ()).getRouter ())).getLocation ();
 			    x += peer_loc.getX ();
@@ -366,125 +517,72 @@ public class E_FloatingContentRouter extends ActiveRouter
 			}
 		    }
 		    if (n > 0) {
-			last_known_location = loc = new Coord (x / (double) n, y / (double) n);
+			last_known_location = loc = tick_location.setInferred (x / (double) n, y / (double) n);
 			location_valid = true;
 		    }
 		}
-		if (deletion_policy == DEL_ENCOUNTER && location_valid) {
+		if (deletion_policy == DEL_ENCOUNTER && location_valid && !new_conns.isEmpty ()) {
 			/* This branch of the code deletes the message upon first encounter of another node outside the anchor zone
 			 * We loop through the new connections to perform the evaluation of the probabilistic deletion check
-			 * once per new connection.  
+			 * once per new connection.  The distances do not depend on the encounter, so they are computed
+			 * only once per message.
 			 */
-             for (Connection c : new_conns) {
-				for (Message m : m_set) {
-					distance_curr = loc.distance ((Coord) m.getProperty (FC_ANCHOR));
-					if ((deletion_check (distance_curr, (Double) m.getProperty (FC_R), (Double) m.getProperty (FC_A)) == 1)) {
-					    if (!d_list.contains (m.getId ()))
-							d_list.add (m.getId ());
-					}
+			n = 0;
+			for (Message m : m_set) {
+				if (n == enc_ids.length)
+					growEncounterArrays ();
+				enc_ids [n] = m.getId ();
+				enc_h [n] = loc.distance ((Coord) m.getProperty (FC_ANCHOR));
+				enc_r [n] = (Double) m.getProperty (FC_R);
+				enc_a [n] = (Double) m.getProperty (FC_A);
+				n++;
+			}
+			for (Connection c : new_conns) {
+				for (int i = 0; i < n; i++) {
+					if (deletion_check (enc_h [i], enc_r [i], enc_a [i]) == 1)
+						d_list.add (enc_ids [i]);
 				}
 			}
+			Arrays.fill (enc_ids, 0, n, null);
 		}
 
-		for (String id : d_list)
-			this.deleteMessage (id, false);
-		d_list.clear();
+		if (!d_list.isEmpty ()) {
+			for (String id : d_list)
+				this.deleteMessage (id, false);
+			d_list.clear();
+		}
 
 		// organize messages for replication
-		for (Message m : m_set) {
-		    m_ordered_list.add (m);
-		}
-		
-		switch (replication_policy) {
-		case REPL_RND:
-			Collections.shuffle (m_ordered_list, rng);
-			break;
-		case REPL_SAF:
-			Collections.sort (m_ordered_list, new Comparator<Message> () {
-				public int compare (Message m1, Message m2) {
-					double  a1, a2;
-					a1 = (Double) m1.getProperty (FC_A);
-					a2 = (Double) m2.getProperty (FC_A);
-
-					if (a1 == a2)
-						return 0;
-					return a1 < a2 ? -1 : 1;
-				}
-			});
-			break;
-		case REPL_SVF:
-			Collections.sort (m_ordered_list, new Comparator<Message> () {
-				public int compare (Message m1, Message m2) {
-					double  v1, v2;
-					v1 = (Double) m1.getProperty (FC_A) * (double) m1.getSize ();
-					v2 = (Double) m2.getProperty (FC_A) * (double) m2.getSize ();
-
-					if (v1 == v2)
-						return 0;
-					return v1 < v2 ? -1 : 1;
-				}
-			});
-			break;
-		case REPL_SVF2:
-			Collections.sort (m_ordered_list, new Comparator<Message> () {
-				public int compare (Message m1, Message m2) {
-					double  v1, v2;
-					v1 = (Double) m1.getProperty (FC_A) * (Double) m1.getProperty (FC_A) * (double) m1.getSize ();
-					v2 = (Double) m2.getProperty (FC_A) * (Double) m2.getProperty (FC_A) * (double) m2.getSize ();
-
-					if (v1 == v2)
-						return 0;
-					return v1 < v2 ? -1 : 1;
-				}
-			});
-			break;
-		case REPL_STF:
-			Collections.sort (m_ordered_list, new Comparator<Message> () {
-				public int compare (Message m1, Message m2) {
-					double  t1, t2;
-					t1 = (Double) m1.getProperty (FC_A);
-					t1 *= (Double) m1.getProperty (FC_TTL_VAL);
-					t1 *= m1.getSize ();
-					t2 = (Double) m2.getProperty (FC_A);
-					t2 *= (Double) m2.getProperty (FC_TTL_VAL);
-					t2 *= m2.getSize ();
-
-					if (t1 == t2)
-						return 0;
-					return t1 < t2 ? -1 : 1;
-				}
-			});
-			break;
-		case REPL_STF2:
-			Collections.sort (m_ordered_list, new Comparator<Message> () {
-				public int compare (Message m1, Message m2) {
-					double  t1, t2;
-
-					t1 = (Double) m1.getProperty (FC_A);
-					t1 *= t1;
-					t1 *= (Double) m1.getProperty (FC_TTL_VAL);
-					t1 *= m1.getSize ();
-					t2 = (Double) m2.getProperty (FC_A);
-					t2 *= t2;
-					t2 *= (Double) m2.getProperty (FC_TTL_VAL);
-					t2 *= m2.getSize ();
-
-					if (t1 == t2)
-						return 0;
-					return t1 < t2 ? -1 : 1;
-				}
-			});
-		case REPL_FIFO:
-		default:
-			/* if none of the above is chosen, we imply "fifo" and use the original message order */
+		if (isPrioritised ()) {
+			/* the priority order is kept up to date as messages come and go */
+			prioritised.copyTo (m_ordered_list);
+		} else {
+			/* the buffer's own order only changes with the buffer, so it is only walked
+			 * (with an iterator) after a change; the draws see the same order as before */
+			if (buffer_order_version != digest.getVersion ()) {
+				buffer_order.clear ();
+				for (Message m : m_set)
+					buffer_order.add (m);
+				buffer_order_version = digest.getVersion ();
+			}
+			for (int k = 0; k < buffer_order.size (); k++)
+				m_ordered_list.add (buffer_order.get (k));
+			/* if not shuffled, we imply "fifo" and use the original message order */
+			if (replication_policy == REPL_RND)
+				Collections.shuffle (m_ordered_list, rng);
 		}
 		
 
 		double a, r, h;
 		int    replicate;
+		/* decisions are counted locally and added to the metrics once per update */
+		int    n_candidates = 0, n_low_energy = 0, n_purged = 0, n_draws = 0, n_wins = 0;
 		
+		// collect the (message, connection) pairs to offer in priority order
+		plan.clear ();
 		// go through all messages in current node's buffer
-		for (Message m : m_ordered_list) {
+		for (int k = 0; k < m_ordered_list.size (); k++) {
+		    Message m = m_ordered_list.get (k);
 		    /* find the right connection(s) for each message
 		     * Messages are replicated to nodes if the target node is within the anchor zone
 		     * If the other node doesn't know where it is, we'll pick the position of the local node.
@@ -494,35 +592,36 @@ public class E_FloatingContentRouter extends ActiveRouter
 		     * We prefer our most recent position over the peer's because our location was surely
 		     * established in this round and may this be more accurate.
 		     */
-		        for (Connection conn : connections) {
+		        for (int c = 0; c < connections.size (); c++) {
+			        Connection            conn = connections.get (c);
 			        DTNHost               peer = null;
 				E_FloatingContentRouter peer_router = null;
 
 				peer = conn.getOtherNode (getHost());
 				peer_router = (E_FloatingContentRouter) peer.getRouter ();
+				n_candidates++;
 				
-				// obtain neighbour node's energy value
-				double nn_energy = (double) peer_router.getHost().getComBus().getProperty(EnergyModel.ENERGY_VALUE_ID); 
-				
-				Collection<Message> msg_to_be_deleted = new HashSet<Message>();
+				// check if neighbour node's energy value is above the threshold
+				boolean nn_eligible = threshold.isEligible(peer);
 				
 				DTNHost dest = m.getTo(); 
 				
-				String key = m.getId ()+"<−>"+m. getFrom().toString()+"<−>"+dest.toString();
+				long key = DeliveredRegistry.keyOf(m);
 				
 				//check if neighbour node's energy value is less than 
 				//minimum energy threshold and not the destination node
-				if(peer_router.delivered.containsKey(key))
+				int cnt = peer_router.delivered.getCount(key);
+				if(cnt > 0)
 				{
-					int cnt = (int)peer_router.delivered.get(key);
-					this.delivered.put(key, ++cnt); 
-					msg_to_be_deleted.add(m); 
+					this.delivered.put(key, ++cnt, DeliveredRegistry.expiryOf(m)); 
+					n_purged++;
 					continue; 
 					
 				}
 				
-				if (nn_energy < this.battery_level_threshold && !dest.equals(peer))
+				if (!nn_eligible && !dest.equals(peer))
 				{
+					n_low_energy++;
 					continue;
 				}	
 				
@@ -551,7 +650,7 @@ public class E_FloatingContentRouter extends ActiveRouter
 				// Rule 1: if within core radius -> replicate
 				// d <= r
 				if (h <= r) {
-					conn_list.add (conn);
+					plan.add (m, conn);
 				}  // Rule 2: r < d <= a: if outside core radius but below a -> use the buffer zone replication rule
 				else if (a > r && h <= a) {
 					double   x;
@@ -578,28 +677,83 @@ public class E_FloatingContentRouter extends ActiveRouter
 							replicate = 0;
 							break;
 						}
-						if (replicate == 1)
-							conn_list.add (conn);
+						n_draws++;
+						if (replicate == 1) {
+							n_wins++;
+							plan.add (m, conn);
+						}
 					}
 				}
 			}
-
-			if (!conn_list.isEmpty ()) {
-				m_list.add (m);
-				
-				
-				
-				this.tryMessagesToConnections (m_list, conn_list);
-				
-				
-				m_list.clear();
-				conn_list.clear();
-			}
 		}
+		metrics.add (RoutingMetrics.CANDIDATES, n_candidates);
+		metrics.add (RoutingMetrics.LOW_ENERGY_SKIPS, n_low_energy);
+		metrics.add (RoutingMetrics.DELIVERED_PURGES, n_purged);
+		metrics.add (RoutingMetrics.REPLICATION_DRAWS, n_draws);
+		metrics.add (RoutingMetrics.REPLICATION_WINS, n_wins);
+		metrics.add (RoutingMetrics.REPLICATION_LOSSES, n_draws - n_wins);
+		scheduler.schedule (getHost (), plan, SimClock.getTime ());
+		tryTransferPlan (plan);
 		m_ordered_list.clear ();
 		new_conns.clear ();
 	}
 
+	/* Deletes the buffered messages that the peers met since the last update have acknowledged
+	 * (see DeliveredRegistry.purgeAcknowledged).
+	 */
+	private void purgeDelivered () {
+		delivered.purgeIfDue ();
+		if (summary_conns.isEmpty ())
+			return;
+
+		metrics.add (RoutingMetrics.SUMMARY_PURGES,
+			     delivered.purgeAcknowledged (this, digest, summary_conns, purged));
+		summary_conns.clear ();
+	}
+
+	public DeliveredRegistry getDelivered () {
+		return this.delivered;
+	}
+
+	/* Hands a transfer plan to the transfer layer in one go.  Like tryMessagesToConnections
+	 * for a single message, each message is offered over its planned connections in order
+	 * until one of them starts a transfer.  A scheduled plan no longer keeps the pairs of a
+	 * message together, so the started messages are remembered for the whole plan.  Pairs
+	 * whose contact is predicted to end before the transfer completes are skipped.  Returns
+	 * the number of transfers started.
+	 */
+	protected int tryTransferPlan (TransferPlan plan) {
+		double  now = SimClock.getTime ();
+		int     n = 0;
+		int     n_short = 0;
+
+		for (int i = 0; i < plan.size (); i++) {
+			Message m = plan.getMessage (i);
+			if (plan_started.contains (m))
+				continue;
+			if (contacts.isTooShort (m, plan.getConnection (i), getHost (), now)) {
+				n_short++;
+				continue;
+			}
+			if (startTransfer (m, plan.getConnection (i)) == RCV_OK) {
+				plan_started.add (m);
+				n++;
+			}
+		}
+		plan_started.clear ();
+		metrics.add (RoutingMetrics.SHORT_CONTACT_SKIPS, n_short);
+		return n;
+	}
+
+	private void growEncounterArrays () {
+		int size = enc_ids.length * 2;
+
+		enc_ids = Arrays.copyOf (enc_ids, size);
+		enc_h = Arrays.copyOf (enc_h, size);
+		enc_r = Arrays.copyOf (enc_r, size);
+		enc_a = Arrays.copyOf (enc_a, size);
+	}
+
 	// This check can only be carried out with the encounter-based deletion;
 	// otherwise, content in the buffer zone would die out too quickly as
 	// every time tick would lead to a new check.
@@ -634,18 +788,28 @@ public class E_FloatingContentRouter extends ActiveRouter
 	}
 	
 	
+	@Override
+	protected int checkReceiving (Message m, DTNHost from)
+	{
+		if (!dutyCycle.accepts (m, getHost ())) {
+			/* duty cycling, no relaying */
+			metrics.increment (RoutingMetrics.DUTY_CYCLE_REFUSALS);
+			return DENIED_LOW_RESOURCES;
+		}
+		return super.checkReceiving (m, from);
+	}
+	
 	@Override
 	public int receiveMessage(Message m, DTNHost from) 
 	{
-		//-1 means the message is an acknowledgement message
-		if (m.getSize() == -1)
+		if (DeliveredRegistry.isAck(m))
 		{
-			String ack_m = m.getId();
-			this.delivered.put(ack_m,1); 
-			String[] parts = ack_m.split("<−>");
+			this.delivered.put(m); 
 			//delete the delivered message from the buffer
-			String m_Id = parts[0];
-			this.deleteMessage(m_Id,false);
+			if (this.hasMessage(m.getId()))
+			{
+				this.deleteMessage(m.getId(),false);
+			}
 			return 0;
 		}
 		
@@ -654,27 +818,101 @@ public class E_FloatingContentRouter extends ActiveRouter
 		
 		if(m.getTo().equals(this.getHost()) && i ==RCV_OK)
 		{
-			String ack_m = m.getId()+"<−>"+m.getFrom().toString()+"<−>"+m.getTo().toString();
-			//message with with size -1 is created indicating that it is an 
-			//acknowledgement message
-			Message ack_mes = new Message ( this.getHost(),from,ack_m,-1);
+			//acknowledgement with the message's ID, source and destination
+			Message ack_mes = DeliveredRegistry.createAck(m);
 			//last sending node is is send the acknowledgement message
 			from.receiveMessage(ack_mes,this.getHost());
-			this.delivered.put(ack_m,1);
+			this.delivered.put(ack_mes);
+			metrics.increment(RoutingMetrics.ACKS_SENT);
 		}
 		return i;
 			
 	}
 	
 
+	@Override
+	protected Connection exchangeDeliverableMessages () {
+		return DirectDelivery.exchange (this, digest, deliverable);
+	}
+
+	@Override
+	public boolean requestDeliverableMessages (Connection conn) {
+		return DirectDelivery.request (this, digest, conn);
+	}
+
+	@Override
+	protected int startTransfer (Message m, Connection conn) {
+		int retVal = super.startTransfer (m, conn);
+		if (retVal == RCV_OK)
+			contacts.transferStarted (conn, SimClock.getTime ());
+		return retVal;
+	}
+
+	@Override
+	protected void transferAborted (Connection conn) {
+		super.transferAborted (conn);
+		metrics.increment (RoutingMetrics.ABORTED_TRANSFERS);
+		metrics.addEnergy (RoutingMetrics.ABORTED_ENERGY,
+				contacts.transferAborted (conn, SimClock.getTime ()));
+	}
+
 	@Override
 	protected void transferDone(Connection conn) {
 		super.transferDone (conn);
+		contacts.transferDone (conn);
 		 // At this point, a node may have moved out of the anchor zone.  We leave the message
 		 // nevertheless to the regular update processing to ensure that reporting and bookkeeping
 		 // don't get confused.
 	}
 
+	public void writeState (RouterCheckpoint.Output out) throws IOException {
+		out.writeBuffer (this);
+		delivered.write (out);
+		threshold.write (out);
+		out.writePeers (new_conns, getHost ());
+		out.writePeers (summary_conns, getHost ());
+
+		out.writeCoord (last_known_location);
+		out.writeDouble (gpsLastReading);
+		out.writeDouble (gpsUpdateInterval);
+		out.writeDouble (gpsErrorMin);
+		out.writeDouble (gpsErrorMax);
+		out.writeCoord (gpsLocation);
+		/* the generators go on from where they were */
+		out.writeRandom (rng);
+		out.writeRandom (replRng);
+		out.writeRandom (delRng);
+		out.writeRandom (rdAngle);
+		out.writeRandom (rdDistance);
+		contacts.write (out, getHost ());
+		dutyCycle.write (out);
+	}
+
+	public void readState (RouterCheckpoint.Input in) {
+		in.readBuffer (this);
+		delivered.read (in);
+		threshold.read (in);
+		new_conns.clear ();
+		in.readPeers (getHost (), new_conns);
+		summary_conns.clear ();
+		in.readPeers (getHost (), summary_conns);
+
+		last_known_location = in.readCoord ();
+		gpsLastReading = in.readDouble ();
+		gpsUpdateInterval = in.readDouble ();
+		gpsErrorMin = in.readDouble ();
+		gpsErrorMax = in.readDouble ();
+		gpsLocation = in.readCoord ();
+		rng = in.readRandom ();
+		replRng = in.readRandom ();
+		delRng = in.readRandom ();
+		rdAngle = in.readRandom ();
+		rdDistance = in.readRandom ();
+		contacts.read (in, getHost ());
+		dutyCycle.read (in);
+		tick_location = new TickLocation ();
+	}
+
 	@Override
 	public E_FloatingContentRouter replicate() {
 		return new E_FloatingContentRouter(this);
@@ -695,10 +933,27 @@ public class E_FloatingContentRouter extends ActiveRouter
 	}
 
         public Coord getLocation () {
+	    Coord loc;
+	    double now;
+
 	    if (!location_error)
 		return getHost().getLocation();
-	    else
+	    if (location_update_interval <= 0 && location_error_max > 0)
+		/* a new error on every reading: each reading draws from the RNGs,
+		 * so they can't be shared without changing the random sequence */
 		return getLocationWithError(location_error_min, location_error_max, location_update_interval, seed);
+
+	    /* at most one reading per tick: the host itself and all its peers
+	     * use the one in the location table */
+	    now = SimClock.getTime ();
+	    loc = tick_location.getPerceived (now);
+	    if (loc == null) {
+		loc = getLocationWithError(location_error_min, location_error_max, location_update_interval, seed);
+		/* a reading at x == -1 counts as no reading and is taken again */
+		if (loc.getX () != -1)
+		    tick_location.setPerceived (loc, now);
+	    }
+	    return loc;
 	}
         
     	//In this method, error is introduced
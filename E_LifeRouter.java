@@ -6,25 +6,28 @@
  */
 package routing;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Vector;
 
 import core.DTNHost;
 import core.Message;
+import core.MessageListener;
 import core.Settings;
-import routing.util.EnergyModel;
+import core.SimClock;
+import core.SimError;
 import util.Tuple;
 import core.Connection;
 
 /**
  * Router module mimicking the game-of-life behavior
  */
-public class E_LifeRouter extends ActiveRouter {
+public class E_LifeRouter extends ActiveRouter 
+		implements ParallelUpdate.Selector, Checkpointable,
+		DeliveredRegistry.Owner {
 	
 	/** 
 	 * Neighboring message count -setting id ({@value}). Two comma
@@ -33,18 +36,46 @@ public class E_LifeRouter extends ActiveRouter {
 	 * is accepted for transfer and kept in the buffer. 
 	 */
 	
-	public Map<String, Integer> delivered; 
+	public DeliveredRegistry delivered; 
 	
 	private void initDelivered()  
 	{
-		this.delivered = new HashMap<>(200);
+		this.delivered = new DeliveredRegistry();
 	}
 	
-	private static double battery_level_threshold; 
+	/** energy settings, shared with the prototype */
+	private EnergyRouterConfig config;
+	/** energy eligibility of the peers */
+	private EnergyThreshold threshold;
+	/** ranks the transfer candidates by benefit per energy */
+	private TransmissionScheduler scheduler;
+	/** contact durations of the peers and the running transfers */
+	private ContactPredictor contacts;
+	/** lowers the update rate when the host's energy runs low */
+	private DutyCycle dutyCycle;
 	
 	
 	public static final String NM_COUNT_S = "nmcount";
 	private int countRange[];
+	/** how many connected peers have each message, indexed by MessageIndex */
+	private int peerCounts[];
+	/** changes whenever the buffer or the connections change */
+	private long changeEpoch;
+	/** transfer candidates for the next update */
+	private CandidateSelection selection;
+	/** the state of the last update that started no transfer */
+	private StateSignature quiet;
+	/** counters of the routing decisions */
+	private RoutingMetrics metrics;
+	/** new connections whose peer's delivered registry is still unchecked */
+	private List<Connection> summaryPending;
+	/** the buffered messages in message index order */
+	private BufferDigest digest;
+	/** the buffered messages each connection's peer doesn't have */
+	private Map<Connection, BufferDigest.Difference> peerDiffs;
+	/** scratch lists reused between updates */
+	private List<String> toDelete;
+	private List<Tuple<Message, Connection>> deliverable;
 	
 	/**
 	 * Constructor. Creates a new message router based on the settings in
@@ -54,7 +85,7 @@ public class E_LifeRouter extends ActiveRouter {
 	public E_LifeRouter(Settings s) {
 		super(s);
 		countRange = s.getCsvInts(NM_COUNT_S, 2);
-		battery_level_threshold = s.getInt("E_LifeRouter.battery_level_threshold"); 
+		this.config = new EnergyRouterConfig(s, "E_LifeRouter");
 	}
 	
 	/**
@@ -64,31 +95,151 @@ public class E_LifeRouter extends ActiveRouter {
 	protected E_LifeRouter(E_LifeRouter r) {
 		super(r);
 		this.countRange = r.countRange;
+		this.config = r.config;
+		this.threshold = new EnergyThreshold(r.config);
+		this.scheduler = new TransmissionScheduler(r.config);
+		this.contacts = new ContactPredictor(r.config);
+		this.dutyCycle = new DutyCycle(r.config);
+		this.peerCounts = new int[64];
+		this.selection = new CandidateSelection();
+		this.quiet = new StateSignature();
+		this.summaryPending = new ArrayList<Connection>();
+		this.digest = new BufferDigest();
+		this.peerDiffs = new HashMap<Connection, BufferDigest.Difference>();
+		this.toDelete = new ArrayList<String>();
+		this.deliverable = new ArrayList<Tuple<Message, Connection>>();
 		initDelivered(); ///
 	}
+	
+	@Override
+	public void init(DTNHost host, List<MessageListener> mListeners) {
+		super.init(host, mListeners);
+		this.metrics = RoutingMetrics.register(this);
+		ParallelUpdate.register(this);
+	}
 
 	/**
-	 * Counts how many of the connected peers have the given message
+	 * Returns how many of the connected peers have the given message
 	 * @param m The message to check
 	 * @return Amount of connected peers with the message
 	 */
 	private int getPeerMessageCount(Message m) {
+		int index = MessageIndex.of(m.getId());
+		return index < peerCounts.length ? peerCounts[index] : 0;
+	}
+	
+	/**
+	 * Adjusts the count of connected peers that have a message
+	 * @param id ID of the message
+	 * @param delta How much to add to the count
+	 * @throws SimError if the count would become negative
+	 */
+	private void updatePeerMessageCount(String id, int delta) {
+		int index = MessageIndex.of(id);
+		
+		if (index >= peerCounts.length) {
+			peerCounts = Arrays.copyOf(peerCounts, 
+					Math.max(index + 1, peerCounts.length * 2));
+		}
+		int count = peerCounts[index] + delta;
+		if (count < 0) {
+			throw new SimError("Peer count of message " + id + " at " +
+					getHost() + " went negative (" + count + ")");
+		}
+		peerCounts[index] = count;
+		changeEpoch++; /* the range checks of the message may change */
+	}
+	
+	/**
+	 * Tells the peers of all up connections that this host's buffer has
+	 * gained or lost a message
+	 * @param id ID of the message
+	 * @param delta 1 if the message was added, -1 if it was removed
+	 */
+	private void notifyPeers(String id, int delta) {
 		DTNHost me = getHost();
-		String id = m.getId();
-		int peerMsgCount = 0;
 		
 		for (Connection c : getConnections()) {
-			if (c.getOtherNode(me).getRouter().hasMessage(id)) {
-				peerMsgCount++;
-			}	
+			if (c.isUp()) {
+				((E_LifeRouter) c.getOtherNode(me).getRouter())
+					.updatePeerMessageCount(id, delta);
+			}
+		}
+	}
+	
+	@Override
+	public void changedConnection(Connection con) {
+		super.changedConnection(con);
+		changeEpoch++;
+		contacts.changedConnection(con, getHost(), SimClock.getTime());
+		if (con.isUp()) {
+			threshold.encountered(con.getOtherNode(getHost()));
+			summaryPending.add(con);
+		} else {
+			summaryPending.remove(con);
+			peerDiffs.remove(con);
 		}
 		
-		return peerMsgCount;
+		/* count (or uncount) all the messages the peer has */
+		int delta = con.isUp() ? 1 : -1;
+		E_LifeRouter peer = (E_LifeRouter) con.getOtherNode(getHost()).getRouter();
+		for (Message m : peer.getMessageCollection()) {
+			updatePeerMessageCount(m.getId(), delta);
+		}
+	}
+	
+	@Override
+	protected void addToMessages(Message m, boolean newMessage) {
+		boolean isNew = !hasMessage(m.getId());
+		
+		super.addToMessages(m, newMessage);
+		changeEpoch++;
+		digest.add(m);
+		if (isNew) {
+			notifyPeers(m.getId(), 1);
+		}
+	}
+	
+	@Override
+	protected Message removeFromMessages(String id) {
+		Message removed = super.removeFromMessages(id);
+		
+		if (removed != null) {
+			changeEpoch++;
+			digest.remove(id);
+			notifyPeers(id, -1);
+		}
+		return removed;
+	}
+	
+	/**
+	 * Deletes the buffered messages that the peers met since the last
+	 * update have acknowledged (see
+	 * {@link DeliveredRegistry#purgeAcknowledged}).
+	 */
+	private void purgeDelivered() {
+		delivered.purgeIfDue();
+		if (summaryPending.isEmpty()) {
+			return;
+		}
+		metrics.add(RoutingMetrics.SUMMARY_PURGES, delivered.purgeAcknowledged(
+				this, digest, summaryPending, toDelete));
+		summaryPending.clear();
+	}
+	
+	public DeliveredRegistry getDelivered() {
+		return this.delivered;
 	}
 	
 	@Override
 	protected int checkReceiving(Message m, DTNHost from) {
-		int peerMsgCount = getPeerMessageCount(m);
+		int peerMsgCount;
+		
+		if (!dutyCycle.accepts(m, getHost())) {
+			metrics.increment(RoutingMetrics.DUTY_CYCLE_REFUSALS);
+			return DENIED_LOW_RESOURCES; /* duty cycling, no relaying */
+		}
+		peerMsgCount = getPeerMessageCount(m);
 		
 		if (peerMsgCount < this.countRange[0] || 
 				peerMsgCount > this.countRange[1]) {
@@ -102,105 +253,161 @@ public class E_LifeRouter extends ActiveRouter {
 	@Override
 	public void update() {
 		int peerMsgCount;
-		Vector<String> messagesToDelete = new Vector<String>();
-		super.update();
+		if (RouterCheckpoint.isPending()) {
+			return; /* fast-forwarding to a checkpoint */
+		}
+		dutyCycle.adjustScanning(getHost());
+		ParallelUpdate.selectAll();
+		super.update(); /* transfers and energy, also when asleep */
+		if (!dutyCycle.isDue(this, SimClock.getTime())) {
+			metrics.increment(RoutingMetrics.SLEPT_UPDATES);
+			return; /* duty cycling, no routing on this tick */
+		}
+		dutyCycle.ran(this, SimClock.getTime());
+		purgeDelivered();
 		
 		if (isTransferring() || !canStartTransfer()) {
 			return; /* transferring, don't try other connections yet */
 		}
+		if (quiet.matches(this, threshold, SimClock.getTime())) {
+			metrics.increment(RoutingMetrics.QUIET_UPDATES);
+			return; /* nothing changed, the same transfers would fail */
+		}
 		
 		/* Try first the messages that can be delivered to final recipient */
 		if (exchangeDeliverableMessages() != null) {
 			return; 
 		}	
-		this.tryOtherMessages();
+		Connection started = this.tryOtherMessages();
 		
 		/* see if need to drop some messages... */
-		for (Message m : getMessageCollection()) {
+		for (int i = 0; i < digest.size(); i++) {
+			Message m = digest.get(i);
 			peerMsgCount = getPeerMessageCount(m);
 			if (peerMsgCount < this.countRange[0] || 
 					peerMsgCount > this.countRange[1]) {
-				messagesToDelete.add(m.getId());				
+				toDelete.add(m.getId());				
 			}
 		}		
-		for (String id : messagesToDelete) { /* ...and drop them */
-			this.deleteMessage(id, true);
+		for (int i = 0; i < toDelete.size(); i++) { /* ...and drop them */
+			this.deleteMessage(toDelete.get(i), true);
 		}
+		toDelete.clear();
 		
+		/* skip the next updates until something changes, unless the
+		 * scheduler left out candidates whose turn may still come */
+		if (started == null && !scheduler.isTruncated()) {
+			quiet.record(this, threshold, contacts.getPredictionEnd(
+					getConnections(), getHost(), SimClock.getTime()));
+		}
 	}
 	
 	
 	
 	
-	private Tuple<Message, Connection> tryOtherMessages(){
-		List<Tuple<Message, Connection>> messages = new ArrayList<Tuple<Message, Connection>>();
-		Collection<Message> msgCollection = getMessageCollection(); 
+	private Connection tryOtherMessages(){
+		double now = SimClock.getTime();
 		
-		Collection<Message> msg_to_be_deleted = new HashSet<Message>();
+		/* use the candidates selected in parallel if they are still valid */
+		if (!selection.isValid(this, threshold, now))
+		{
+			selectCandidates(now);
+		}
+		TransferPlan plan = selection.commit(this.delivered, metrics);
+		scheduler.schedule(getHost(), plan, now);
+		return plan.tryInOrder(this);
+	}
+	
+	public void selectCandidates() {
+		if (RouterCheckpoint.isPending() ||
+				isTransferring() || !canStartTransfer() ||
+				!dutyCycle.isDue(this, SimClock.getTime()) ||
+				quiet.matches(this, threshold, SimClock.getTime())) {
+			return; /* update won't try other messages */
+		}
+		selectCandidates(SimClock.getTime());
+	}
+	
+	/**
+	 * Selects the messages to offer to the peers. Only reads the state of
+	 * this router and its peers; acknowledgements learned from the peers
+	 * are recorded when the selection is committed.
+	 * @param now Current simulation time
+	 */
+	private void selectCandidates(double now) {
+		List<Connection> connections = getConnections();
 		
-		for (Connection con : getConnections())
+		selection.start(this, threshold, now);
+		for (int c = 0; c < connections.size(); c++)
 		{
+			Connection con = connections.get(c);
 			DTNHost other = con.getOtherNode(getHost());
 			E_LifeRouter othRouter = (E_LifeRouter) other.getRouter();
 			if (othRouter.isTransferring())
 			{
 				continue;
 			}
-			// obtain neighbour node's energy value
-			double nn_energy = (double) othRouter.getHost().getComBus().getProperty(EnergyModel.ENERGY_VALUE_ID); 
-			// go through all messages in current node's buffer
-			for (Message m : msgCollection)
+			// check if neighbour node's energy value is above the threshold
+			boolean nn_eligible = threshold.isEligible(other);
+			// go through the messages in current node's buffer that the
+			// neighbour doesn't have
+			BufferDigest.Difference diff = peerDiffs.get(con);
+			if (diff == null)
 			{
-				if(othRouter.hasMessage(m.getId())) 
-				{
-					continue;
-				}
+				diff = new BufferDigest.Difference(this.digest, othRouter.digest);
+				peerDiffs.put(con, diff);
+			}
+			diff.refresh();
+			selection.count(RoutingMetrics.CANDIDATES, digest.size());
+			selection.count(RoutingMetrics.HAS_MESSAGE_SKIPS, 
+					digest.size() - diff.size());
+			for (int i = 0; i < diff.size(); i++)
+			{
+				Message m = diff.get(i);
 				DTNHost dest = m.getTo();
 				
 				//check if neighbour node's energy value is less than 
 				//minimum energy threshold and not the destination node
-				String key = m.getId ()+"<−>"+m. getFrom().toString()+"<−>"+dest.toString();
+				long key = DeliveredRegistry.keyOf(m);
 				
-				if(othRouter.delivered.containsKey(key))
+				int cnt = othRouter.delivered.getCount(key);
+				if(cnt > 0)
 				{
-					int cnt = (int)othRouter.delivered.get(key);
-					this.delivered.put(key, ++cnt); 
-					msg_to_be_deleted.add(m); 
+					selection.addDelivered(key, cnt + 1, DeliveredRegistry.expiryOf(m)); 
+					selection.count(RoutingMetrics.DELIVERED_PURGES);
 					continue; 
 					
-				}		
-				if (nn_energy < this.battery_level_threshold && !dest.equals(other))
-				{
-					continue;
 				}
-				if(dest.equals(other))
+				if (!nn_eligible && !dest.equals(other))
 				{
-					messages.add(new Tuple<Message, Connection>(m, con));
+					selection.count(RoutingMetrics.LOW_ENERGY_SKIPS);
+					continue;
 				}
-				
-				else
+				if (contacts.isTooShort(m, con, getHost(), now))
 				{
-					messages.add(new Tuple<Message, Connection>(m, con)); 
+					selection.count(RoutingMetrics.SHORT_CONTACT_SKIPS);
+					continue;
 				}
-										
+				selection.addCandidate(m, con);
 			}
-					
 		}
-		return tryMessagesForConnected(messages);
+	}
+	
+	public long getChangeEpoch() {
+		return this.changeEpoch + this.delivered.getVersion();
 	}
 	
 	@Override
 	public int receiveMessage(Message m, DTNHost from) 
 	{
-		//-1 means the message is an acknowledgement message
-		if (m.getSize() == -1)
+		if (DeliveredRegistry.isAck(m))
 		{
-			String ack_m = m.getId();
-			this.delivered.put(ack_m,1); 
-			String[] parts = ack_m.split("<−>");
-			String m_Id = parts[0];
+			this.delivered.put(m); 
 			//delete the delivered message from the buffer
-			this.deleteMessage(m_Id,false);
+			if (this.hasMessage(m.getId()))
+			{
+				this.deleteMessage(m.getId(),false);
+			}
 			return 0;
 		}
 		
@@ -209,21 +416,80 @@ public class E_LifeRouter extends ActiveRouter {
 		
 		if(m.getTo().equals(this.getHost()) && i ==RCV_OK)
 		{
-			String ack_m = m.getId()+"<−>"+m.getFrom().toString()+"<−>"+m.getTo().toString();
-			//message with with size -1 is created indicating that it is an 
-			//acknowledgement message
-			Message ack_mes = new Message ( this.getHost(),from,ack_m,-1);
+			//acknowledgement with the message's ID, source and destination
+			Message ack_mes = DeliveredRegistry.createAck(m);
 			//last sending node is is send the acknowledgement message
 			from.receiveMessage(ack_mes,this.getHost());
-			this.delivered.put(ack_m,1);
+			this.delivered.put(ack_mes);
+			metrics.increment(RoutingMetrics.ACKS_SENT);
 		}
 		return i;
 		
 	}
 	
 	
+	@Override
+	public boolean createNewMessage(Message m) {
+		boolean created = super.createNewMessage(m);
+		if (created) {
+			RouterCheckpoint.created(this, m);
+		}
+		return created;
+	}
+	
+	public void writeState(RouterCheckpoint.Output out) throws IOException {
+		out.writeBuffer(this);
+		delivered.write(out);
+		threshold.write(out);
+		out.writePeers(summaryPending, getHost());
+		contacts.write(out, getHost());
+		dutyCycle.write(out);
+	}
+	
+	public void readState(RouterCheckpoint.Input in) {
+		in.readBuffer(this);
+		delivered.read(in);
+		threshold.read(in);
+		summaryPending.clear();
+		in.readPeers(getHost(), summaryPending);
+		contacts.read(in, getHost());
+		dutyCycle.read(in);
+	}
+	
+	@Override
+	protected Connection exchangeDeliverableMessages() {
+		return DirectDelivery.exchange(this, digest, deliverable);
+	}
+	
+	@Override
+	public boolean requestDeliverableMessages(Connection con) {
+		return DirectDelivery.request(this, digest, con);
+	}
+	
+	@Override
+	protected int startTransfer(Message m, Connection con) {
+		int retVal = super.startTransfer(m, con);
+		if (retVal == RCV_OK) {
+			contacts.transferStarted(con, SimClock.getTime());
+		}
+		return retVal;
+	}
 	
+	@Override
+	protected void transferAborted(Connection con) {
+		super.transferAborted(con);
+		changeEpoch++;
+		metrics.increment(RoutingMetrics.ABORTED_TRANSFERS);
+		metrics.addEnergy(RoutingMetrics.ABORTED_ENERGY, 
+				contacts.transferAborted(con, SimClock.getTime()));
+	}
 	
+	@Override
+	protected void transferDone(Connection con) {
+		super.transferDone(con);
+		changeEpoch++;
+		contacts.transferDone(con);
+	}
 
 	@Override
 	public E_LifeRouter replicate() {
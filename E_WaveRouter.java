@@ -6,19 +6,20 @@
  */
 package routing;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeSet;
 
-import routing.util.EnergyModel;
 import routing.util.RoutingInfo;
 import util.Tuple;
 import core.Connection;
 import core.DTNHost;
 import core.Message;
+import core.MessageListener;
 import core.Settings;
 import core.SimClock;
 
@@ -27,21 +28,32 @@ import core.SimClock;
  * Work in progress.
  */
 
-public class E_WaveRouter extends ActiveRouter{
+public class E_WaveRouter extends ActiveRouter 
+		implements ParallelUpdate.Selector, Checkpointable,
+		DeliveredRegistry.Owner {
 	
 	/** 
 	 * Immunity time -setting id ({@value}). Defines how long time a node
 	 * will reject incoming messages it has already received 
 	 */
 	
-	public Map<String, Integer> delivered; 
+	public DeliveredRegistry delivered; 
 	
 	private void initDelivered()  
 	{
-		this.delivered = new HashMap<>(200);
+		this.delivered = new DeliveredRegistry();
 	}
 	
-	private static double battery_level_threshold; 
+	/** energy settings, shared with the prototype */
+	private EnergyRouterConfig config;
+	/** energy eligibility of the peers */
+	private EnergyThreshold threshold;
+	/** ranks the transfer candidates by benefit per energy */
+	private TransmissionScheduler scheduler;
+	/** contact durations of the peers and the running transfers */
+	private ContactPredictor contacts;
+	/** lowers the update rate when the host's energy runs low */
+	private DutyCycle dutyCycle;
 	
 	public static final String IMMUNITY_S = "immunityTime";
 	/** 
@@ -55,6 +67,38 @@ public class E_WaveRouter extends ActiveRouter{
 	private Map<String, Double> recentMessages;	
 	/** IDs of the messages this host has custody for */
 	private Map<String, Double> custodyMessages;
+	/** recent messages ordered by the time their immunity ends */
+	private ExpiryQueue immunityExpiries;
+	/** custody messages ordered by the time their custody ends */
+	private ExpiryQueue custodyExpiries;
+	/** buffered messages without custody, oldest received first */
+	private TreeSet<Message> evictable;
+	/** changes whenever the buffer or the connections change */
+	private long changeEpoch;
+	/** transfer candidates for the next update */
+	private CandidateSelection selection;
+	/** the state of the last update that started no transfer */
+	private StateSignature quiet;
+	/** counters of the routing decisions */
+	private RoutingMetrics metrics;
+	/** new connections whose peer's delivered registry is still unchecked */
+	private List<Connection> summaryPending;
+	/** the buffered messages in message index order */
+	private BufferDigest digest;
+	/** the buffered messages each connection's peer doesn't have */
+	private Map<Connection, BufferDigest.Difference> peerDiffs;
+	/** scratch lists reused between updates */
+	private List<String> toDelete;
+	private List<Tuple<Message, Connection>> deliverable;
+	
+	/** orders messages by receive time (and ID for equal times) */
+	private static final Comparator<Message> RECEIVE_TIME_ORDER = 
+		new Comparator<Message>() {
+		public int compare(Message m1, Message m2) {
+			int c = Double.compare(m1.getReceiveTime(), m2.getReceiveTime());
+			return c != 0 ? c : m1.getId().compareTo(m2.getId());
+		}
+	};
 	
 	/**
 	 * Constructor. Creates a new message router based on the settings in
@@ -65,7 +109,7 @@ public class E_WaveRouter extends ActiveRouter{
 		super(s);
 		this.immunityTime = s.getDouble(IMMUNITY_S);
 		this.custodyFraction = s.getDouble(CUSTODY_S);
-		battery_level_threshold = s.getInt("E_WaveRouter.battery_level_threshold");
+		this.config = new EnergyRouterConfig(s, "E_WaveRouter");
 	}
 	
 	/**
@@ -77,146 +121,332 @@ public class E_WaveRouter extends ActiveRouter{
 		recentMessages = new HashMap<String, Double>();
 		this.immunityTime = r.immunityTime;
 		this.custodyFraction = r.custodyFraction;
+		this.config = r.config;
+		this.threshold = new EnergyThreshold(r.config);
+		this.scheduler = new TransmissionScheduler(r.config);
+		this.contacts = new ContactPredictor(r.config);
+		this.dutyCycle = new DutyCycle(r.config);
 		this.custodyMessages = new HashMap<String, Double>();
+		this.immunityExpiries = new ExpiryQueue();
+		this.custodyExpiries = new ExpiryQueue();
+		this.evictable = new TreeSet<Message>(RECEIVE_TIME_ORDER);
+		this.selection = new CandidateSelection();
+		this.quiet = new StateSignature();
+		this.summaryPending = new ArrayList<Connection>();
+		this.digest = new BufferDigest();
+		this.peerDiffs = new HashMap<Connection, BufferDigest.Difference>();
+		this.toDelete = new ArrayList<String>();
+		this.deliverable = new ArrayList<Tuple<Message, Connection>>();
 		initDelivered(); ///
 	}
+	
+	@Override
+	public void init(DTNHost host, List<MessageListener> mListeners) {
+		super.init(host, mListeners);
+		this.metrics = RoutingMetrics.register(this);
+		ParallelUpdate.register(this);
+	}
+	
+	@Override
+	public void changedConnection(Connection con) {
+		super.changedConnection(con);
+		changeEpoch++;
+		contacts.changedConnection(con, getHost(), SimClock.getTime());
+		if (con.isUp()) {
+			threshold.encountered(con.getOtherNode(getHost()));
+			summaryPending.add(con);
+		} else {
+			summaryPending.remove(con);
+			peerDiffs.remove(con);
+		}
+	}
 
 	@Override
 	protected int checkReceiving(Message m, DTNHost from) {
-		Double lastTime = this.recentMessages.get(m.getId());
-			
-		if (lastTime != null) {
-			if (lastTime + this.immunityTime > SimClock.getTime()) {
-				return DENIED_POLICY; /* still immune to the message */
-			} else {
-				/* immunity has passed; remove from recent */
-				this.recentMessages.remove(m.getId()); 
-			}
+		if (!dutyCycle.accepts(m, getHost())) {
+			metrics.increment(RoutingMetrics.DUTY_CYCLE_REFUSALS);
+			return DENIED_LOW_RESOURCES; /* duty cycling, no relaying */
+		}
+		expireEntries();
+		
+		if (this.recentMessages.containsKey(m.getId())) {
+			return DENIED_POLICY; /* still immune to the message */
 		}
 
 		/* no last time or immunity passed; receive based on other checks */
 		return super.checkReceiving(m, from);
 	}
 	
+	/**
+	 * Removes the immunity and custody entries whose time has passed. Messages
+	 * whose custody ends become candidates for removal.
+	 */
+	private void expireEntries() {
+		double now = SimClock.getTime();
+		
+		while (immunityExpiries.peekTime() <= now) {
+			double time = immunityExpiries.peekTime();
+			String id = immunityExpiries.poll();
+			Double lastTime = recentMessages.get(id);
+			/* skip entries of messages that have been received again */
+			if (lastTime != null && lastTime + immunityTime == time) {
+				recentMessages.remove(id);
+			}
+		}
+		
+		while (custodyExpiries.peekTime() < now) {
+			double time = custodyExpiries.peekTime();
+			String id = custodyExpiries.poll();
+			Double custodyStartTime = custodyMessages.get(id);
+			if (custodyStartTime != null && 
+					custodyStartTime + immunityTime * custodyFraction == time) {
+				releaseCustody(id);
+			}
+		}
+	}
+	
+	/**
+	 * Takes custody of a message so that it will not be removed for a while
+	 * @param id ID of the message
+	 */
+	private void takeCustody(String id) {
+		double now = SimClock.getTime();
+		
+		this.custodyMessages.put(id, now);
+		this.custodyExpiries.add(id, now + immunityTime * custodyFraction);
+		Message m = getMessage(id);
+		if (m != null) {
+			this.evictable.remove(m);
+		}
+	}
+	
+	/**
+	 * Releases custody of a message (if this host had it)
+	 * @param id ID of the message
+	 */
+	private void releaseCustody(String id) {
+		if (this.custodyMessages.remove(id) != null) {
+			Message m = getMessage(id);
+			if (m != null) {
+				this.evictable.add(m);
+			}
+		}
+	}
+	
 	/**
 	 * Returns the oldest message that has been already sent forward 
 	 */
 	@Override
 	protected Message getNextMessageToRemove(boolean excludeMsgBeingSent) {
-		Collection<Message> messages = this.getMessageCollection();
-		Message oldest = null;
+		expireEntries();
 		
-		for (Message m : messages) {
-			Double custodyStartTime = this.custodyMessages.get(m.getId());
-			if (custodyStartTime != null) {
-				if (SimClock.getTime() > 
-					custodyStartTime + immunityTime * custodyFraction) {
-					this.custodyMessages.remove(m.getId()); /* time passed */
-				} else {
-					continue; /* skip messages that still have custody */					
-				}
-			}
-				
-			
+		for (Message m : this.evictable) {
 			if (excludeMsgBeingSent && isSending(m.getId())) {
 				continue; /* skip the message(s) that router is sending */
 			}
-			
-			if (oldest == null ) {
-				oldest = m;
-			}
-			else if (oldest.getReceiveTime() > m.getReceiveTime()) {
-				oldest = m;
-			}
+			return m;
 		}
 		
-		return oldest;
+		return null;
+	}
+	
+	@Override
+	protected void addToMessages(Message m, boolean newMessage) {
+		super.addToMessages(m, newMessage);
+		changeEpoch++;
+		digest.add(m);
+		if (!this.custodyMessages.containsKey(m.getId())) {
+			this.evictable.add(m);
+		}
+	}
+	
+	@Override
+	protected Message removeFromMessages(String id) {
+		Message removed = super.removeFromMessages(id);
+		if (removed != null) {
+			changeEpoch++;
+			digest.remove(id);
+			this.evictable.remove(removed);
+		}
+		return removed;
+	}
+	
+	/**
+	 * Deletes the buffered messages that the peers met since the last
+	 * update have acknowledged (see
+	 * {@link DeliveredRegistry#purgeAcknowledged}).
+	 */
+	private void purgeDelivered() {
+		delivered.purgeIfDue();
+		if (summaryPending.isEmpty()) {
+			return;
+		}
+		metrics.add(RoutingMetrics.SUMMARY_PURGES, delivered.purgeAcknowledged(
+				this, digest, summaryPending, toDelete));
+		summaryPending.clear();
+	}
+	
+	public DeliveredRegistry getDelivered() {
+		return this.delivered;
 	}
 	
 	@Override
 	public void update() {
-		super.update();
+		if (RouterCheckpoint.isPending()) {
+			return; /* fast-forwarding to a checkpoint */
+		}
+		dutyCycle.adjustScanning(getHost());
+		ParallelUpdate.selectAll();
+		super.update(); /* transfers and energy, also when asleep */
+		if (!dutyCycle.isDue(this, SimClock.getTime())) {
+			metrics.increment(RoutingMetrics.SLEPT_UPDATES);
+			return; /* duty cycling, no routing on this tick */
+		}
+		dutyCycle.ran(this, SimClock.getTime());
+		expireEntries();
+		purgeDelivered();
 		
 		if (isTransferring() || !canStartTransfer()) {
 			return; /* transferring, don't try other connections yet */
 		}
+		if (quiet.matches(this, threshold, SimClock.getTime())) {
+			metrics.increment(RoutingMetrics.QUIET_UPDATES);
+			return; /* nothing changed, the same transfers would fail */
+		}
 		
 		/* Try first the messages that can be delivered to final recipient */
 		if (exchangeDeliverableMessages() != null) {
 			return; 
 		}		
-		this.tryOtherMessages();
+		if (this.tryOtherMessages() == null && !scheduler.isTruncated()) {
+			/* skip the next updates until something changes */
+			quiet.record(this, threshold, getQuietUntil(SimClock.getTime()));
+		}
+	}
+	
+	/**
+	 * Returns the time until which the transfers refused on this update
+	 * would be refused again even if nothing changed: the time when the
+	 * first of the peers' immunities or of the contact predictions ends
+	 * @param now Current simulation time
+	 * @return The time
+	 */
+	private double getQuietUntil(double now) {
+		List<Connection> connections = getConnections();
+		double until = contacts.getPredictionEnd(connections, getHost(), now);
+		
+		for (int i = 0; i < connections.size(); i++) {
+			E_WaveRouter peer = (E_WaveRouter) 
+				connections.get(i).getOtherNode(getHost()).getRouter();
+			until = Math.min(until, peer.immunityExpiries.peekTime());
+		}
+		return until;
 	}
 	
 	
-	private Tuple<Message, Connection> tryOtherMessages(){
-		List<Tuple<Message, Connection>> messages = new ArrayList<Tuple<Message, Connection>>();
-		Collection<Message> msgCollection = getMessageCollection();
+	private Connection tryOtherMessages(){
+		double now = SimClock.getTime();
 		
-		Collection<Message> msg_to_be_deleted = new HashSet<Message>();
+		/* use the candidates selected in parallel if they are still valid */
+		if (!selection.isValid(this, threshold, now))
+		{
+			selectCandidates(now);
+		}
+		TransferPlan plan = selection.commit(this.delivered, metrics);
+		scheduler.schedule(getHost(), plan, now);
+		return plan.tryInOrder(this);
+	}
+	
+	public void selectCandidates() {
+		if (RouterCheckpoint.isPending() ||
+				isTransferring() || !canStartTransfer() ||
+				!dutyCycle.isDue(this, SimClock.getTime()) ||
+				quiet.matches(this, threshold, SimClock.getTime())) {
+			return; /* update won't try other messages */
+		}
+		selectCandidates(SimClock.getTime());
+	}
+	
+	/**
+	 * Selects the messages to offer to the peers. Only reads the state of
+	 * this router and its peers; acknowledgements learned from the peers
+	 * are recorded when the selection is committed.
+	 * @param now Current simulation time
+	 */
+	private void selectCandidates(double now) {
+		List<Connection> connections = getConnections();
 		
-		for (Connection con : getConnections())
+		selection.start(this, threshold, now);
+		for (int c = 0; c < connections.size(); c++)
 		{
+			Connection con = connections.get(c);
 			DTNHost other = con.getOtherNode(getHost());
 			E_WaveRouter othRouter = (E_WaveRouter) other.getRouter();
 			if (othRouter.isTransferring())
 			{
 				continue;
 			}
-			// obtain neighbour node's energy value
-			double nn_energy = (double) othRouter.getHost().getComBus().getProperty(EnergyModel.ENERGY_VALUE_ID);
-			// go through all messages in current node's buffer
-			for (Message m : msgCollection)
+			// check if neighbour node's energy value is above the threshold
+			boolean nn_eligible = threshold.isEligible(other);
+			// go through the messages in current node's buffer that the
+			// neighbour doesn't have
+			BufferDigest.Difference diff = peerDiffs.get(con);
+			if (diff == null)
 			{
-				if(othRouter.hasMessage(m.getId())) 
-				{
-					continue;
-				}
+				diff = new BufferDigest.Difference(this.digest, othRouter.digest);
+				peerDiffs.put(con, diff);
+			}
+			diff.refresh();
+			selection.count(RoutingMetrics.CANDIDATES, digest.size());
+			selection.count(RoutingMetrics.HAS_MESSAGE_SKIPS, 
+					digest.size() - diff.size());
+			for (int i = 0; i < diff.size(); i++)
+			{
+				Message m = diff.get(i);
 				DTNHost dest = m.getTo();
 				
 				//check if neighbour node's energy value is less than 
 				//minimum energy threshold and not the destination node
-				String key = m.getId ()+"<−>"+m. getFrom().toString()+"<−>"+dest.toString();
+				long key = DeliveredRegistry.keyOf(m);
 				
-				if(othRouter.delivered.containsKey(key))
+				int cnt = othRouter.delivered.getCount(key);
+				if(cnt > 0)
 				{
-					int cnt = (int)othRouter.delivered.get(key);
-					this.delivered.put(key, ++cnt); 
-					msg_to_be_deleted.add(m); 
+					selection.addDelivered(key, cnt + 1, DeliveredRegistry.expiryOf(m)); 
+					selection.count(RoutingMetrics.DELIVERED_PURGES);
 					continue; 
 					
 				}
-				
-				if (nn_energy < this.battery_level_threshold && !dest.equals(other))
+				if (!nn_eligible && !dest.equals(other))
 				{
+					selection.count(RoutingMetrics.LOW_ENERGY_SKIPS);
 					continue;
 				}
-				if(dest.equals(other))
+				if (contacts.isTooShort(m, con, getHost(), now))
 				{
-					messages.add(new Tuple<Message, Connection>(m, con));
+					selection.count(RoutingMetrics.SHORT_CONTACT_SKIPS);
+					continue;
 				}
-				
-				else
-				{
-					messages.add(new Tuple<Message, Connection>(m, con)); 
-				}							
-			}			
+				selection.addCandidate(m, con);
+			}
 		}
-		return tryMessagesForConnected(messages);
+	}
+	
+	public long getChangeEpoch() {
+		return this.changeEpoch + this.delivered.getVersion();
 	}
 	
 	@Override
 	public int receiveMessage(Message m, DTNHost from) 
 	{
-		//-1 means the message is an acknowledgement message
-		if (m.getSize() == -1)
+		if (DeliveredRegistry.isAck(m))
 		{
-			String ack_m = m.getId();
-			this.delivered.put(ack_m,1); 
-			String[] parts = ack_m.split("<−>");
-			String m_Id = parts[0];
+			this.delivered.put(m); 
 			//delete the delivered message from the buffer
-			this.deleteMessage(m_Id,false);
+			if (this.hasMessage(m.getId()))
+			{
+				this.deleteMessage(m.getId(),false);
+			}
 			return 0;
 		}
 		
@@ -225,13 +455,12 @@ public class E_WaveRouter extends ActiveRouter{
 		
 		if(m.getTo().equals(this.getHost()) && i ==RCV_OK)
 		{
-			String ack_m = m.getId()+"<−>"+m.getFrom().toString()+"<−>"+m.getTo().toString();
-			//message with with size -1 is created indicating that it is an 
-			//acknowledgement message
-			Message ack_mes = new Message ( this.getHost(),from,ack_m,-1);
+			//acknowledgement with the message's ID, source and destination
+			Message ack_mes = DeliveredRegistry.createAck(m);
 			//last sending node is is send the acknowledgement message
 			from.receiveMessage(ack_mes,this.getHost());
-			this.delivered.put(ack_m,1);
+			this.delivered.put(ack_mes);
+			metrics.increment(RoutingMetrics.ACKS_SENT);
 		}
 		return i;
 		
@@ -244,27 +473,103 @@ public class E_WaveRouter extends ActiveRouter{
 	public Message messageTransferred(String id, DTNHost from) {
 		Message m = super.messageTransferred(id, from);
 		/* store received message IDs for immunity */
-		this.recentMessages.put(m.getId(), new Double(SimClock.getTime()));
-		this.custodyMessages.put(id, SimClock.getTime());
+		this.recentMessages.put(m.getId(), SimClock.getTime());
+		this.immunityExpiries.add(m.getId(), SimClock.getTime() + immunityTime);
+		takeCustody(id);
 		return m;
 	}
 	
+	@Override
+	public boolean createNewMessage(Message m) {
+		boolean created = super.createNewMessage(m);
+		if (created) {
+			RouterCheckpoint.created(this, m);
+		}
+		return created;
+	}
+	
+	public void writeState(RouterCheckpoint.Output out) throws IOException {
+		out.writeTimes(recentMessages);
+		out.writeTimes(custodyMessages);
+		out.writeBuffer(this);
+		delivered.write(out);
+		threshold.write(out);
+		out.writePeers(summaryPending, getHost());
+		contacts.write(out, getHost());
+		dutyCycle.write(out);
+	}
+	
+	public void readState(RouterCheckpoint.Input in) {
+		/* custody first, so that the buffer knows what is evictable */
+		this.recentMessages = new HashMap<String, Double>();
+		this.custodyMessages = new HashMap<String, Double>();
+		this.immunityExpiries = new ExpiryQueue();
+		this.custodyExpiries = new ExpiryQueue();
+		in.readTimes(recentMessages);
+		in.readTimes(custodyMessages);
+		for (Map.Entry<String, Double> e : recentMessages.entrySet()) {
+			immunityExpiries.add(e.getKey(), e.getValue() + immunityTime);
+		}
+		for (Map.Entry<String, Double> e : custodyMessages.entrySet()) {
+			custodyExpiries.add(e.getKey(), 
+					e.getValue() + immunityTime * custodyFraction);
+		}
+		
+		in.readBuffer(this);
+		delivered.read(in);
+		threshold.read(in);
+		summaryPending.clear();
+		in.readPeers(getHost(), summaryPending);
+		contacts.read(in, getHost());
+		dutyCycle.read(in);
+	}
+	
+	@Override
+	protected Connection exchangeDeliverableMessages() {
+		return DirectDelivery.exchange(this, digest, deliverable);
+	}
+	
+	@Override
+	public boolean requestDeliverableMessages(Connection con) {
+		return DirectDelivery.request(this, digest, con);
+	}
+	
+	@Override
+	protected int startTransfer(Message m, Connection con) {
+		int retVal = super.startTransfer(m, con);
+		if (retVal == RCV_OK) {
+			contacts.transferStarted(con, SimClock.getTime());
+		}
+		return retVal;
+	}
+	
+	@Override
+	protected void transferAborted(Connection con) {
+		super.transferAborted(con);
+		changeEpoch++;
+		metrics.increment(RoutingMetrics.ABORTED_TRANSFERS);
+		metrics.addEnergy(RoutingMetrics.ABORTED_ENERGY, 
+				contacts.transferAborted(con, SimClock.getTime()));
+	}
+	
 	@Override
 	protected void transferDone(Connection con) { 
+		changeEpoch++;
+		contacts.transferDone(con);
 		/* remove from custody messages (if it was there) */
-		this.custodyMessages.remove(con.getMessage().getId()); 
+		releaseCustody(con.getMessage().getId()); 
 	}
 	
 	@Override
 	public RoutingInfo getRoutingInfo() {
+		expireEntries();
 		RoutingInfo ri = super.getRoutingInfo();
 		RoutingInfo immunity = new RoutingInfo("Immune to " + 
 				this.recentMessages.size() + " messages");
 		
-		for (String id : recentMessages.keySet()) {
-			RoutingInfo m = new RoutingInfo(id + " until " + 
-					String.format("%.2f", 
-							recentMessages.get(id) + this.immunityTime));
+		for (Map.Entry<String, Double> e : recentMessages.entrySet()) {
+			RoutingInfo m = new RoutingInfo(e.getKey() + " until " + 
+					String.format("%.2f", e.getValue() + this.immunityTime));
 			immunity.addMoreInfo(m);
 		}		
 		ri.addMoreInfo(immunity);
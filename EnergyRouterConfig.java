@@ -0,0 +1,308 @@
+/*
+ * Released under GPLv3. See LICENSE.txt for details.
+ */
+package routing;
+
+import routing.util.EnergyModel;
+import core.Settings;
+import core.SettingsError;
+
+/**
+ * Energy settings of an energy-aware router. The settings are parsed once
+ * when the router prototype is created and the (immutable) object is
+ * shared by all the replicas of the prototype, so routers of different
+ * groups or of different simulation runs don't share any static state.
+ * <P>The settings are read from the router's settings (e.g.
+ * <code>Group1.E_LifeRouter.battery_level_threshold</code>) if they are
+ * defined there and otherwise from the router's namespace
+ * (<code>E_LifeRouter.battery_level_threshold</code>).</P>
+ */
+public class EnergyRouterConfig {
+	/** Battery level threshold -setting id ({@value}). Energy units. */
+	public static final String THRESHOLD_S = "battery_level_threshold";
+	/**
+	 * Threshold mode -setting id ({@value}). {@value #MODE_FIXED} (default)
+	 * uses the battery level threshold; {@value #MODE_PERCENTILE} uses a
+	 * percentile of the energy levels of the recently encountered peers
+	 * (and the battery level threshold, if set, until a peer is met).
+	 */
+	public static final String THRESHOLD_MODE_S = "thresholdMode";
+	/** Percentile -setting id ({@value}). Between 0 and 1. */
+	public static final String PERCENTILE_S = "thresholdPercentile";
+	/** Encounter window -setting id ({@value}). Number of encounters. */
+	public static final String WINDOW_S = "thresholdWindow";
+	/**
+	 * Scheduled candidates -setting id ({@value}). How many of the best
+	 * transfer candidates a {@link TransmissionScheduler} keeps per update.
+	 * 0 (default) disables scheduling and the candidates are tried in
+	 * selection order.
+	 */
+	public static final String SCHEDULE_TOP_K_S = "scheduleTopK";
+	/**
+	 * Relay benefit -setting id ({@value}). Expected delivery benefit of
+	 * giving a fresh message to a relay, relative to giving it to its
+	 * destination. Between 0 and 1.
+	 */
+	public static final String RELAY_BENEFIT_S = "scheduleRelayBenefit";
+	/**
+	 * Contact prediction -setting id ({@value}). If true, transfers that
+	 * are predicted not to complete before the contact ends are skipped
+	 * (see {@link ContactPredictor}). Default is false.
+	 */
+	public static final String CONTACT_PREDICTION_S = "contactPrediction";
+	/**
+	 * Duty cycle bands -setting id ({@value}). Comma separated, descending
+	 * energy levels; a host at or below the <i>i</i>th level only routes
+	 * and scans every <i>i</i>th duty cycle interval (see
+	 * {@link DutyCycle}). Not set (default) disables duty cycling.
+	 */
+	public static final String DUTY_CYCLE_BANDS_S = "dutyCycleBands";
+	/**
+	 * Duty cycle intervals -setting id ({@value}). Comma separated seconds
+	 * between the routing and scanning rounds in each duty cycle band; one
+	 * per band.
+	 */
+	public static final String DUTY_CYCLE_INTERVALS_S = "dutyCycleIntervals";
+
+	/** Value of the fixed threshold mode ({@value}) */
+	public static final String MODE_FIXED = "fixed";
+	/** Value of the percentile threshold mode ({@value}) */
+	public static final String MODE_PERCENTILE = "percentile";
+	/** Default percentile ({@value}) */
+	public static final double DEF_PERCENTILE = 0.25;
+	/** Default encounter window ({@value}) */
+	public static final int DEF_WINDOW = 32;
+	/** Default relay benefit ({@value}) */
+	public static final double DEF_RELAY_BENEFIT = 0.5;
+
+	private final double batteryLevelThreshold;
+	private final boolean adaptive;
+	private final double percentile;
+	private final int window;
+	private final int scheduleTopK;
+	private final double relayBenefit;
+	private final double transmitEnergy;
+	private final boolean contactPrediction;
+	private final double[] dutyCycleBands;
+	private final double[] dutyCycleIntervals;
+
+	/**
+	 * Parses the configuration
+	 * @param s The router's settings
+	 * @param routerNs Namespace of the router's own settings (its class name)
+	 */
+	public EnergyRouterConfig(Settings s, String routerNs) {
+		Settings ns = new Settings(routerNs);
+		String mode = getSetting(s, ns, routerNs, THRESHOLD_MODE_S);
+
+		if (mode == null || mode.equals(MODE_FIXED)) {
+			this.adaptive = false;
+		} else if (mode.equals(MODE_PERCENTILE)) {
+			this.adaptive = true;
+		} else {
+			throw new SettingsError("Unknown " + THRESHOLD_MODE_S + " '" +
+					mode + "' for " + routerNs);
+		}
+
+		String threshold = getSetting(s, ns, routerNs, THRESHOLD_S);
+		if (threshold != null) {
+			this.batteryLevelThreshold = parseDouble(threshold, THRESHOLD_S);
+		} else if (adaptive) {
+			this.batteryLevelThreshold = 0;
+		} else {
+			/* throws the error of the missing setting */
+			this.batteryLevelThreshold = ns.getDouble(THRESHOLD_S);
+		}
+
+		String percentile = getSetting(s, ns, routerNs, PERCENTILE_S);
+		this.percentile = percentile == null ? DEF_PERCENTILE :
+			parseDouble(percentile, PERCENTILE_S);
+		if (this.percentile < 0 || this.percentile > 1) {
+			throw new SettingsError(PERCENTILE_S + " of " + routerNs +
+					" must be between 0 and 1");
+		}
+
+		String window = getSetting(s, ns, routerNs, WINDOW_S);
+		this.window = window == null ? DEF_WINDOW :
+			(int)parseDouble(window, WINDOW_S);
+		if (this.window < 1) {
+			throw new SettingsError(WINDOW_S + " of " + routerNs +
+					" must be positive");
+		}
+
+		String topK = getSetting(s, ns, routerNs, SCHEDULE_TOP_K_S);
+		this.scheduleTopK = topK == null ? 0 :
+			(int)parseDouble(topK, SCHEDULE_TOP_K_S);
+		if (this.scheduleTopK < 0) {
+			throw new SettingsError(SCHEDULE_TOP_K_S + " of " + routerNs +
+					" can't be negative");
+		}
+
+		String relay = getSetting(s, ns, routerNs, RELAY_BENEFIT_S);
+		this.relayBenefit = relay == null ? DEF_RELAY_BENEFIT :
+			parseDouble(relay, RELAY_BENEFIT_S);
+		if (this.relayBenefit < 0 || this.relayBenefit > 1) {
+			throw new SettingsError(RELAY_BENEFIT_S + " of " + routerNs +
+					" must be between 0 and 1");
+		}
+
+		/* the energy model's own setting; without it only the relative
+		 * costs of the transfers matter */
+		this.transmitEnergy = s.contains(EnergyModel.TRANSMIT_ENERGY_S) ?
+				s.getDouble(EnergyModel.TRANSMIT_ENERGY_S) : 1;
+
+		String prediction = getSetting(s, ns, routerNs, CONTACT_PREDICTION_S);
+		this.contactPrediction = prediction != null &&
+			parseBoolean(prediction, CONTACT_PREDICTION_S);
+
+		String bands = getSetting(s, ns, routerNs, DUTY_CYCLE_BANDS_S);
+		String intervals = getSetting(s, ns, routerNs, DUTY_CYCLE_INTERVALS_S);
+		this.dutyCycleBands = bands == null ? new double[0] :
+			parseDoubles(bands, DUTY_CYCLE_BANDS_S);
+		this.dutyCycleIntervals = intervals == null ? new double[0] :
+			parseDoubles(intervals, DUTY_CYCLE_INTERVALS_S);
+		if (dutyCycleBands.length != dutyCycleIntervals.length) {
+			throw new SettingsError(DUTY_CYCLE_BANDS_S + " and " +
+					DUTY_CYCLE_INTERVALS_S + " of " + routerNs +
+					" must have as many values");
+		}
+		for (int i = 0; i < dutyCycleBands.length; i++) {
+			if (i > 0 && dutyCycleBands[i] >= dutyCycleBands[i - 1]) {
+				throw new SettingsError(DUTY_CYCLE_BANDS_S + " of " +
+						routerNs + " must be in descending order");
+			}
+			if (dutyCycleIntervals[i] <= 0) {
+				throw new SettingsError(DUTY_CYCLE_INTERVALS_S + " of " +
+						routerNs + " must be positive");
+			}
+		}
+	}
+
+	/**
+	 * Returns a setting from the router's settings or its namespace
+	 * @return The value or null if it is not defined in either
+	 */
+	private static String getSetting(Settings s, Settings ns, String routerNs,
+			String name) {
+		if (s.contains(routerNs + "." + name)) {
+			return s.getSetting(routerNs + "." + name);
+		}
+		return ns.contains(name) ? ns.getSetting(name) : null;
+	}
+
+	private static double parseDouble(String value, String name) {
+		try {
+			return Double.parseDouble(value.trim());
+		} catch (NumberFormatException e) {
+			throw new SettingsError("Invalid value '" + value + "' for " +
+					name);
+		}
+	}
+
+	private static double[] parseDoubles(String value, String name) {
+		String[] parts = value.split(",");
+		double[] values = new double[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			values[i] = parseDouble(parts[i], name);
+		}
+		return values;
+	}
+
+	private static boolean parseBoolean(String value, String name) {
+		String v = value.trim();
+		if (v.equals("true") || v.equals("1")) {
+			return true;
+		} else if (v.equals("false") || v.equals("0")) {
+			return false;
+		}
+		throw new SettingsError("Invalid value '" + value + "' for " + name);
+	}
+
+	/**
+	 * Returns the energy level below which a peer is not used as a relay
+	 * (in the percentile mode, until the first peer has been met)
+	 * @return The battery level threshold
+	 */
+	public double getBatteryLevelThreshold() {
+		return this.batteryLevelThreshold;
+	}
+
+	/**
+	 * Returns true if the threshold follows the energy levels of the
+	 * encountered peers
+	 * @return True in the percentile mode
+	 */
+	public boolean isAdaptive() {
+		return this.adaptive;
+	}
+
+	/**
+	 * Returns the percentile of the encountered energy levels used as the
+	 * threshold in the percentile mode
+	 * @return The percentile (0...1)
+	 */
+	public double getPercentile() {
+		return this.percentile;
+	}
+
+	/**
+	 * Returns how many recent encounters the percentile is computed from
+	 * @return The window size
+	 */
+	public int getWindow() {
+		return this.window;
+	}
+
+	/**
+	 * Returns how many of the best transfer candidates are kept per update
+	 * @return The number of candidates or 0 if scheduling is disabled
+	 */
+	public int getScheduleTopK() {
+		return this.scheduleTopK;
+	}
+
+	/**
+	 * Returns the expected delivery benefit of giving a fresh message to a
+	 * relay instead of its destination
+	 * @return The relay benefit (0...1)
+	 */
+	public double getRelayBenefit() {
+		return this.relayBenefit;
+	}
+
+	/**
+	 * Returns the energy the host's interface spends per second of
+	 * transfer (the energy model's <code>transmitEnergy</code>)
+	 * @return The transmit energy, or 1 if the host has no energy model
+	 */
+	public double getTransmitEnergy() {
+		return this.transmitEnergy;
+	}
+
+	/**
+	 * Returns true if transfers that are predicted not to complete before
+	 * the contact ends are skipped
+	 * @return True if contact prediction is enabled
+	 */
+	public boolean isContactPrediction() {
+		return this.contactPrediction;
+	}
+
+	/**
+	 * Returns the energy levels of the duty cycle bands
+	 * @return The levels in descending order; empty if duty cycling is
+	 * disabled
+	 */
+	public double[] getDutyCycleBands() {
+		return this.dutyCycleBands;
+	}
+
+	/**
+	 * Returns the seconds between the routing and scanning rounds in each
+	 * duty cycle band
+	 * @return The intervals, in band order
+	 */
+	public double[] getDutyCycleIntervals() {
+		return this.dutyCycleIntervals;
+	}
+}
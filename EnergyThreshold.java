@@ -0,0 +1,140 @@
+/*
+ * Released under GPLv3. See LICENSE.txt for details.
+ */
+package routing;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import core.DTNHost;
+
+/**
+ * Energy eligibility of a router's peers. In the fixed mode a peer is
+ * eligible if its energy is at or above the battery level threshold. In
+ * the percentile mode the threshold is the configured percentile of the
+ * energy levels of the peers met in the last encounters, kept in a small
+ * sorted window, so relaying follows the energy distribution of the
+ * host's neighbourhood instead of a constant.
+ */
+public class EnergyThreshold {
+	private EnergyRouterConfig config;
+	/** hosts above the fixed threshold (fetched when first needed) */
+	private BitSet above;
+	/** energies of the last encounters, in encounter order (ring buffer) */
+	private double[] recent;
+	/** the same energies in ascending order */
+	private double[] sorted;
+	private int size;
+	private int next;
+
+	/**
+	 * Creates a threshold
+	 * @param config The router's energy settings
+	 */
+	public EnergyThreshold(EnergyRouterConfig config) {
+		this.config = config;
+		if (config.isAdaptive()) {
+			this.recent = new double[config.getWindow()];
+			this.sorted = new double[config.getWindow()];
+		}
+	}
+
+	/**
+	 * Records the energy of a peer met in an encounter. Does nothing in the
+	 * fixed mode or if the peer has no energy model.
+	 * @param peer The peer
+	 */
+	public void encountered(DTNHost peer) {
+		if (!config.isAdaptive()) {
+			return;
+		}
+		double energy = EnergyView.getEnergy(peer);
+		if (Double.isInfinite(energy)) {
+			return;
+		}
+		add(energy);
+	}
+
+	private void add(double energy) {
+		if (size == recent.length) { /* forget the oldest encounter */
+			remove(recent[next]);
+		}
+		recent[next] = energy;
+		next = (next + 1) % recent.length;
+		insert(energy);
+	}
+
+	private void insert(double energy) {
+		int i = Arrays.binarySearch(sorted, 0, size, energy);
+		if (i < 0) {
+			i = -i - 1;
+		}
+		System.arraycopy(sorted, i, sorted, i + 1, size - i);
+		sorted[i] = energy;
+		size++;
+	}
+
+	private void remove(double energy) {
+		int i = Arrays.binarySearch(sorted, 0, size, energy);
+		System.arraycopy(sorted, i + 1, sorted, i, size - i - 1);
+		size--;
+	}
+
+	/**
+	 * Writes the encounter window to a checkpoint
+	 * @param out The checkpoint
+	 * @throws IOException if writing fails
+	 */
+	public void write(RouterCheckpoint.Output out) throws IOException {
+		out.writeInt(size);
+		for (int i = 0; i < size; i++) { /* oldest first */
+			int j = (next - size + i + recent.length) % recent.length;
+			out.writeDouble(recent[j]);
+		}
+	}
+	
+	/**
+	 * Replaces the encounter window with the one written to a checkpoint
+	 * @param in The checkpoint
+	 */
+	public void read(RouterCheckpoint.Input in) {
+		int n = in.readInt();
+		size = 0;
+		next = 0;
+		for (int i = 0; i < n; i++) {
+			double energy = in.readDouble();
+			if (recent != null) { /* the fixed mode has no window */
+				add(energy);
+			}
+		}
+	}
+	
+	/**
+	 * Returns the current threshold
+	 * @return The energy level below which peers are not eligible
+	 */
+	public double getThreshold() {
+		if (!config.isAdaptive() || size == 0) {
+			return config.getBatteryLevelThreshold();
+		}
+		/* nearest rank percentile */
+		int rank = (int)Math.ceil(config.getPercentile() * size);
+		return sorted[Math.max(rank - 1, 0)];
+	}
+
+	/**
+	 * Returns true if a peer's energy is at or above the threshold
+	 * @param peer The peer
+	 * @return True if the peer can be used as a relay
+	 */
+	public boolean isEligible(DTNHost peer) {
+		if (config.isAdaptive()) {
+			return EnergyView.getEnergy(peer) >= getThreshold();
+		}
+		if (above == null) {
+			above = EnergyView.getAbove(config.getBatteryLevelThreshold());
+		}
+		return EnergyView.isAbove(peer, above);
+	}
+}
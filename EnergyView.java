@@ -0,0 +1,166 @@
+/* 
+ * Released under GPLv3. See LICENSE.txt for details. 
+ */
+package routing;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import core.DTNHost;
+import core.DTNSim;
+import core.ModuleCommunicationBus;
+import core.ModuleCommunicationListener;
+import routing.util.EnergyModel;
+
+/**
+ * Energy levels of all hosts indexed by host address. The levels are kept
+ * up to date by subscribing to each host's {@link EnergyModel#ENERGY_VALUE_ID}
+ * ComBus property, so reading a neighbour's energy is an array access
+ * instead of a ComBus lookup and unboxing. For each watched threshold, a
+ * bit set of the hosts at or above that threshold is maintained as well.
+ * Hosts without an energy model are reported to have infinite energy.
+ * <P>Once all hosts have been looked up (and so tracked) and the watched
+ * thresholds registered, reading the view does not modify it, so it can be
+ * read from several threads while no energy values change.</P>
+ */
+public class EnergyView {
+	private static final int INITIAL_CAPACITY = 128;
+	
+	/** latest known energy of each host */
+	private static double[] energies;
+	/** is the host subscribed to (its energy value exists on the ComBus) */
+	private static boolean[] tracked;
+	/** watched thresholds and the hosts at or above each of them */
+	private static double[] thresholds;
+	private static BitSet[] above;
+	private static int nrofThresholds;
+	
+	static {
+		DTNSim.registerForReset(EnergyView.class.getCanonicalName());
+		reset();
+	}
+	
+	/**
+	 * Returns the current energy of a host
+	 * @param host The host
+	 * @return The energy value or positive infinity if the host has no
+	 * energy model (yet)
+	 */
+	public static double getEnergy(DTNHost host) {
+		int address = host.getAddress();
+		
+		if (address >= tracked.length || !tracked[address]) {
+			track(host);
+		}
+		return energies[address];
+	}
+	
+	/**
+	 * Returns the set of host addresses whose energy is at or above the
+	 * given threshold. The set is updated whenever energy values change.
+	 * @param threshold The energy threshold
+	 * @return The live set of host addresses
+	 */
+	public static synchronized BitSet getAbove(double threshold) {
+		for (int i = 0; i < nrofThresholds; i++) {
+			if (thresholds[i] == threshold) {
+				return above[i];
+			}
+		}
+		
+		if (nrofThresholds == thresholds.length) {
+			thresholds = Arrays.copyOf(thresholds, nrofThresholds * 2);
+			above = Arrays.copyOf(above, nrofThresholds * 2);
+		}
+		BitSet bits = new BitSet(energies.length);
+		for (int i = 0; i < energies.length; i++) {
+			bits.set(i, energies[i] >= threshold);
+		}
+		thresholds[nrofThresholds] = threshold;
+		above[nrofThresholds] = bits;
+		nrofThresholds++;
+		return bits;
+	}
+	
+	/**
+	 * Returns true if a host is in the given set of hosts above a threshold
+	 * @param host The host to check
+	 * @param aboveSet A set returned by {@link #getAbove(double)}
+	 * @return True if the host's energy is at or above the set's threshold
+	 */
+	public static boolean isAbove(DTNHost host, BitSet aboveSet) {
+		getEnergy(host); /* makes sure the host is tracked */
+		return aboveSet.get(host.getAddress());
+	}
+	
+	/**
+	 * Starts tracking the energy of a host if its energy model has already
+	 * published the energy value
+	 */
+	private static synchronized void track(DTNHost host) {
+		int address = host.getAddress();
+		ensureCapacity(address + 1);
+		if (tracked[address]) {
+			return;
+		}
+		
+		ModuleCommunicationBus comBus = host.getComBus();
+		if (!comBus.containsProperty(EnergyModel.ENERGY_VALUE_ID)) {
+			/* untracked hosts already have infinite energy in the view */
+			return; /* no energy model or not initialized yet; retry later */
+		}
+		
+		tracked[address] = true;
+		comBus.subscribe(EnergyModel.ENERGY_VALUE_ID, new HostListener(address));
+		set(address, (Double)comBus.getProperty(EnergyModel.ENERGY_VALUE_ID));
+	}
+	
+	private static void set(int address, double energy) {
+		energies[address] = energy;
+		for (int i = 0; i < nrofThresholds; i++) {
+			above[i].set(address, energy >= thresholds[i]);
+		}
+	}
+	
+	private static void ensureCapacity(int size) {
+		if (size <= energies.length) {
+			return;
+		}
+		
+		int oldSize = energies.length;
+		int newSize = Math.max(size, oldSize * 2);
+		energies = Arrays.copyOf(energies, newSize);
+		tracked = Arrays.copyOf(tracked, newSize);
+		Arrays.fill(energies, oldSize, newSize, Double.POSITIVE_INFINITY);
+		for (int i = 0; i < nrofThresholds; i++) {
+			above[i].set(oldSize, newSize);
+		}
+	}
+	
+	/**
+	 * Resets the view for a new simulation run
+	 */
+	public static void reset() {
+		energies = new double[INITIAL_CAPACITY];
+		Arrays.fill(energies, Double.POSITIVE_INFINITY);
+		tracked = new boolean[INITIAL_CAPACITY];
+		thresholds = new double[2];
+		above = new BitSet[2];
+		nrofThresholds = 0;
+	}
+	
+	/**
+	 * Copies the energy value of one host to the view when it changes
+	 */
+	private static class HostListener implements ModuleCommunicationListener {
+		private int address;
+		
+		public HostListener(int address) {
+			this.address = address;
+		}
+		
+		public void moduleValueChanged(String key, Object newValue) {
+			set(address, (Double)newValue);
+		}
+	}
+}
@@ -0,0 +1,123 @@
+/* 
+ * Released under GPLv3. See LICENSE.txt for details. 
+ */
+package routing;
+
+import java.util.Arrays;
+
+/**
+ * Min-heap of message IDs ordered by an expiry time. Routers push an entry
+ * when something starts to expire and poll the entries whose time has
+ * passed as the simulation clock advances. Entries are never removed
+ * early; owners should check that a polled entry is still current.
+ */
+public class ExpiryQueue {
+	private static final int INITIAL_CAPACITY = 16;
+	
+	private double[] times;
+	private String[] ids;
+	private int size;
+	
+	/**
+	 * Creates a new, empty queue
+	 */
+	public ExpiryQueue() {
+		this.times = new double[INITIAL_CAPACITY];
+		this.ids = new String[INITIAL_CAPACITY];
+	}
+	
+	/**
+	 * Adds an entry to the queue
+	 * @param id The message ID
+	 * @param time When the entry expires
+	 */
+	public void add(String id, double time) {
+		if (size == times.length) {
+			times = Arrays.copyOf(times, size * 2);
+			ids = Arrays.copyOf(ids, size * 2);
+		}
+		
+		int i = size++;
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (times[parent] <= time) {
+				break;
+			}
+			times[i] = times[parent];
+			ids[i] = ids[parent];
+			i = parent;
+		}
+		times[i] = time;
+		ids[i] = id;
+	}
+	
+	/**
+	 * Returns the earliest expiry time in the queue
+	 * @return The time or positive infinity if the queue is empty
+	 */
+	public double peekTime() {
+		return size > 0 ? times[0] : Double.POSITIVE_INFINITY;
+	}
+	
+	/**
+	 * Returns the ID of the entry that expires first
+	 * @return The ID or null if the queue is empty
+	 */
+	public String peekId() {
+		return size > 0 ? ids[0] : null;
+	}
+	
+	/**
+	 * Removes the entry that expires first
+	 * @return ID of the removed entry or null if the queue was empty
+	 */
+	public String poll() {
+		if (size == 0) {
+			return null;
+		}
+		
+		String first = ids[0];
+		size--;
+		double time = times[size];
+		String id = ids[size];
+		ids[size] = null;
+		
+		int i = 0;
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= size) {
+				break;
+			}
+			if (child + 1 < size && times[child + 1] < times[child]) {
+				child++;
+			}
+			if (time <= times[child]) {
+				break;
+			}
+			times[i] = times[child];
+			ids[i] = ids[child];
+			i = child;
+		}
+		if (size > 0) {
+			times[i] = time;
+			ids[i] = id;
+		}
+		return first;
+	}
+	
+	/**
+	 * Returns the number of entries in the queue
+	 * @return The number of entries
+	 */
+	public int size() {
+		return this.size;
+	}
+	
+	/**
+	 * Returns true if the queue is empty
+	 * @return True if there are no entries
+	 */
+	public boolean isEmpty() {
+		return this.size == 0;
+	}
+}
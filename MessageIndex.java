@@ -0,0 +1,166 @@
+/* 
+ * Released under GPLv3. See LICENSE.txt for details. 
+ */
+package routing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import core.DTNSim;
+import core.SimClock;
+import core.SimError;
+
+/**
+ * Interns message IDs to small integer indexes, so routers can use the
+ * index as a primitive key or an array index instead of the ID string.
+ * <P>The buffers ({@link BufferDigest}) and the delivery registries
+ * ({@link DeliveredRegistry}) hold references to the indexes they store
+ * (see {@link #retain(int)}). An ID that no buffer holds and no registry
+ * entry acknowledges any more is released on the first interning, retain
+ * or release of a later tick: its message has left all the buffers and
+ * its acknowledgements have expired, so the table only keeps the live
+ * messages. Indexes are never reused; if a released ID is seen again, it
+ * gets a new index. Within a tick an ID keeps its index, so lookups of
+ * the messages removed during the tick stay consistent.</P>
+ */
+public class MessageIndex {
+	/** index of each interned message ID */
+	private static Map<String, Integer> indexes;
+	/** interned message IDs in index order (null for released ones) */
+	private static List<String> ids;
+	/** number of references to each index */
+	private static int[] references;
+	/** indexes that had no references at {@link #pendingTime} */
+	private static int[] pending;
+	private static int nrofPending;
+	private static double pendingTime;
+	
+	static {
+		DTNSim.registerForReset(MessageIndex.class.getCanonicalName());
+		reset();
+	}
+	
+	/**
+	 * Returns the index of a message ID, interning the ID if it has not
+	 * been seen before
+	 * @param id The message ID
+	 * @return The index of the ID (0, 1, 2...)
+	 */
+	public static int of(String id) {
+		Integer index = indexes.get(id);
+		
+		if (index == null) {
+			synchronized (ids) {
+				index = indexes.get(id);
+				if (index == null) {
+					releasePending();
+					index = ids.size();
+					ids.add(id);
+					indexes.put(id, index);
+					if (index >= references.length) {
+						references = Arrays.copyOf(references,
+								Math.max(index + 1, references.length * 2));
+					}
+					addPending(index); /* until something retains it */
+				}
+			}
+		}
+		return index;
+	}
+	
+	/**
+	 * Adds a reference to an index, so its ID is not released
+	 * @param index The index
+	 */
+	public static void retain(int index) {
+		synchronized (ids) {
+			releasePending();
+			references[index]++;
+		}
+	}
+	
+	/**
+	 * Removes a reference to an index. An index left with no references
+	 * is released on a later tick.
+	 * @param index The index
+	 * @throws SimError if the index has no references
+	 */
+	public static void release(int index) {
+		synchronized (ids) {
+			releasePending();
+			if (references[index] <= 0) {
+				throw new SimError("Message index " + index + " (" + 
+						ids.get(index) + ") released more than retained");
+			}
+			if (--references[index] == 0) {
+				addPending(index);
+			}
+		}
+	}
+	
+	/**
+	 * Queues an index for release (must hold the lock)
+	 */
+	private static void addPending(int index) {
+		if (nrofPending == pending.length) {
+			pending = Arrays.copyOf(pending, nrofPending * 2);
+		}
+		pending[nrofPending++] = index;
+	}
+	
+	/**
+	 * Releases the queued indexes that still have no references once the
+	 * clock has moved past the tick they were queued on (must hold the lock)
+	 */
+	private static void releasePending() {
+		double now = SimClock.getTime();
+		if (now <= pendingTime) {
+			return;
+		}
+		for (int i = 0; i < nrofPending; i++) {
+			int index = pending[i];
+			String id = ids.get(index);
+			if (references[index] == 0 && id != null) {
+				indexes.remove(id);
+				ids.set(index, null);
+			}
+		}
+		nrofPending = 0;
+		pendingTime = now;
+	}
+	
+	/**
+	 * Returns the message ID of an index
+	 * @param index The index
+	 * @return The message ID or null if no ID has that index (or it has
+	 * been released)
+	 */
+	public static String idOf(int index) {
+		synchronized (ids) {
+			return index >= 0 && index < ids.size() ? ids.get(index) : null;
+		}
+	}
+	
+	/**
+	 * Returns how many message IDs are interned and not released
+	 * @return The number of interned IDs
+	 */
+	public static int size() {
+		return indexes.size();
+	}
+	
+	/**
+	 * Resets the index table for a new simulation run
+	 */
+	public static void reset() {
+		indexes = new ConcurrentHashMap<String, Integer>();
+		ids = new ArrayList<String>();
+		references = new int[256];
+		pending = new int[64];
+		nrofPending = 0;
+		pendingTime = Double.NEGATIVE_INFINITY;
+	}
+}
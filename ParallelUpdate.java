@@ -0,0 +1,150 @@
+/*
+ * Released under GPLv3. See LICENSE.txt for details.
+ */
+package routing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import core.DTNSim;
+import core.Settings;
+import core.SimClock;
+
+/**
+ * Two-phase router update. When enabled, the first router update of each
+ * simulation tick selects the transfer candidates of all registered
+ * routers in parallel (phase one). Selection only reads the routers' and
+ * their peers' state. The routers' own updates then run serially in the
+ * simulator's normal order (phase two) and start the transfers and make
+ * the deletions. A router uses its pre-selected candidates only if the
+ * state they were selected from has not changed by then, and otherwise
+ * selects them again, so the results are identical to the serial mode.
+ * <P>Parallel updates are enabled with the setting
+ * <code>Optimization.parallelRouting = true</code>; the number of
+ * threads can be set with <code>Optimization.routingThreads</code>
+ * (default: number of available processors).</P>
+ */
+public class ParallelUpdate {
+	/** Namespace of the settings ({@value}) */
+	public static final String OPTIMIZATION_NS = "Optimization";
+	/** Enable parallel selection -setting id ({@value}). Boolean. */
+	public static final String PARALLEL_ROUTING_S = "parallelRouting";
+	/** Number of selection threads -setting id ({@value}). Integer. */
+	public static final String ROUTING_THREADS_S = "routingThreads";
+	/** Routers per task below which a task is not split further */
+	private static final int MIN_TASK_SIZE = 4;
+
+	/**
+	 * Router whose candidate selection can be done in phase one. Only
+	 * {@link MessageRouter}s can implement this.
+	 */
+	public interface Selector extends ChangeTracking {
+		/**
+		 * Selects the transfer candidates for the router's next update.
+		 * Must only read the state of this and other routers.
+		 */
+		public void selectCandidates();
+	}
+
+	private static boolean initialized;
+	private static boolean enabled;
+	private static ForkJoinPool pool;
+	private static List<Selector> selectors;
+	private static double lastSelection;
+
+	static {
+		DTNSim.registerForReset(ParallelUpdate.class.getCanonicalName());
+		reset();
+	}
+
+	/**
+	 * Returns true if parallel selection is enabled in the settings
+	 * @return True if parallel selection is enabled
+	 */
+	public static boolean isEnabled() {
+		if (!initialized) {
+			Settings s = new Settings(OPTIMIZATION_NS);
+			enabled = s.contains(PARALLEL_ROUTING_S) &&
+				s.getBoolean(PARALLEL_ROUTING_S);
+			if (enabled) {
+				int threads = s.contains(ROUTING_THREADS_S) ?
+					s.getInt(ROUTING_THREADS_S) :
+					Runtime.getRuntime().availableProcessors();
+				pool = new ForkJoinPool(threads);
+			}
+			initialized = true;
+		}
+		return enabled;
+	}
+
+	/**
+	 * Registers a router for phase one selection (if enabled)
+	 * @param selector The router
+	 */
+	public static void register(Selector selector) {
+		if (isEnabled()) {
+			selectors.add(selector);
+		}
+	}
+
+	/**
+	 * Runs phase one for all registered routers, if it has not been run
+	 * yet on this simulation tick. Routers call this at the beginning of
+	 * their update.
+	 */
+	public static void selectAll() {
+		if (!enabled || lastSelection == SimClock.getTime()) {
+			return;
+		}
+		lastSelection = SimClock.getTime();
+
+		/* track all hosts' energies before the view is read concurrently */
+		for (int i = 0; i < selectors.size(); i++) {
+			EnergyView.getEnergy(((MessageRouter)selectors.get(i)).getHost());
+		}
+		pool.invoke(new SelectTask(0, selectors.size()));
+	}
+
+	/**
+	 * Resets the state for a new simulation run
+	 */
+	public static void reset() {
+		if (pool != null) {
+			pool.shutdown();
+		}
+		pool = null;
+		initialized = false;
+		enabled = false;
+		selectors = new ArrayList<Selector>();
+		lastSelection = Double.NaN;
+	}
+
+	/**
+	 * Selects the candidates of a range of the registered routers,
+	 * splitting the range between tasks
+	 */
+	private static class SelectTask extends RecursiveAction {
+		private int from;
+		private int to;
+
+		public SelectTask(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= MIN_TASK_SIZE) {
+				for (int i = from; i < to; i++) {
+					selectors.get(i).selectCandidates();
+				}
+				return;
+			}
+
+			int mid = (from + to) >>> 1;
+			invokeAll(new SelectTask(from, mid), new SelectTask(mid, to));
+		}
+	}
+}
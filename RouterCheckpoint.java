@@ -0,0 +1,553 @@
+/*
+ * Released under GPLv3. See LICENSE.txt for details.
+ */
+package routing;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import routing.util.EnergyModel;
+import core.Connection;
+import core.Coord;
+import core.DTNHost;
+import core.DTNSim;
+import core.Message;
+import core.SimError;
+
+/**
+ * Binary checkpoint of the energy-aware routers' state: each host's energy
+ * and its router's buffer, delivery acknowledgements and other state (see
+ * {@link Checkpointable}). Sweeps that only differ after a warm-up can
+ * run the warm-up once and fork from its checkpoint.
+ * <P>The file starts with a header (magic, version, simulation time), a
+ * table of the strings used (message IDs, router class names), so each
+ * is written only once, and then has a block of each host. Numbers are
+ * big-endian. Checkpoints are read through a memory-mapped buffer, so the
+ * runs that fork from the same checkpoint (e.g. in one SweepRunner) share
+ * the pages of the file and nothing is copied through streams.</P>
+ * <P>A run restores from a checkpoint by fast-forwarding to it: until
+ * the checkpoint's time the routers stay passive (they don't update and
+ * the messages created are only kept aside), while the movement,
+ * connections and message events of the scenario run as usual. At the
+ * checkpoint's time the routers' state and the energies are replaced with
+ * the checkpoint's and the run goes on from there. The checkpoint must
+ * thus come from the same scenario (hosts, movement and message events)
+ * up to its time; settings that only matter after it may differ.
+ * Transfers that were running when the checkpoint was written are not
+ * saved, and the restored buffers may iterate in a different order, so a
+ * restored run continues the original one but is not identical to it.
+ * See report.CheckpointReport for the settings.</P>
+ */
+public class RouterCheckpoint {
+	/** Magic number of a checkpoint file ("ERCP") */
+	public static final int MAGIC = 0x45524350;
+	/** Version of the format ({@value}) */
+	public static final int VERSION = 2;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** true while fast-forwarding to a checkpoint */
+	private static boolean pending;
+	/** the messages created while fast-forwarding, by ID */
+	private static Map<String, Message> created;
+
+	static {
+		DTNSim.registerForReset(RouterCheckpoint.class.getCanonicalName());
+		reset();
+	}
+
+	private RouterCheckpoint() { }
+
+	/**
+	 * Returns true if the run is fast-forwarding to a checkpoint. The
+	 * routers must not update (nor buffer created messages) then.
+	 * @return True until the checkpoint has been restored
+	 */
+	public static boolean isPending() {
+		return pending;
+	}
+
+	/**
+	 * Takes a message that a router has just created aside if the run is
+	 * fast-forwarding: the message is removed from the router's buffer
+	 * and kept for the restore. Does nothing otherwise.
+	 * @param router The router
+	 * @param m The new message
+	 */
+	public static void created(MessageRouter router, Message m) {
+		if (pending) {
+			router.removeFromMessages(m.getId());
+			created.put(m.getId(), m);
+		}
+	}
+
+	/**
+	 * Writes a checkpoint of the hosts' state
+	 * @param file The checkpoint file
+	 * @param hosts All the hosts, in address order
+	 * @param time Current simulation time
+	 * @throws IOException if writing fails
+	 */
+	public static void write(File file, List<DTNHost> hosts, double time)
+			throws IOException {
+		Output body = new Output();
+
+		body.writeInt(hosts.size());
+		for (DTNHost host : hosts) {
+			MessageRouter router = host.getRouter();
+			Output block = new Output(body);
+
+			if (router instanceof Checkpointable) {
+				((Checkpointable)router).writeState(block);
+			}
+			body.writeInt(host.getAddress());
+			body.writeString(router.getClass().getSimpleName());
+			body.writeDouble(EnergyView.getEnergy(host));
+			body.writeInt(block.bytes.size());
+			block.data.flush();
+			block.bytes.writeTo(body.data);
+		}
+		body.data.flush();
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeDouble(time);
+			out.writeInt(body.table.size());
+			for (String s : body.table) {
+				byte[] b = s.getBytes(UTF8);
+				out.writeInt(b.length);
+				out.write(b);
+			}
+			body.bytes.writeTo(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Starts fast-forwarding to a checkpoint
+	 * @param file The checkpoint file
+	 * @return The simulation time of the checkpoint
+	 */
+	public static double startRestore(File file) {
+		double time = map(file).getDouble(8);
+		pending = true;
+		return time;
+	}
+
+	/**
+	 * Restores the hosts' state from a checkpoint and ends fast-forwarding
+	 * @param file The checkpoint file
+	 * @param hosts All the hosts, in address order
+	 */
+	public static void restore(File file, List<DTNHost> hosts) {
+		Input in = new Input(map(file), hosts);
+		int nrofHosts = in.readInt();
+
+		if (nrofHosts != hosts.size()) {
+			throw new SimError("Checkpoint " + file + " has " + nrofHosts +
+					" hosts instead of " + hosts.size());
+		}
+		for (int i = 0; i < nrofHosts; i++) {
+			DTNHost host = in.readHost();
+			String routerClass = in.readString();
+			double energy = in.readDouble();
+			int end = in.readInt() + in.buffer.position();
+			MessageRouter router = host.getRouter();
+
+			if (!router.getClass().getSimpleName().equals(routerClass)) {
+				throw new SimError("Checkpoint " + file + " has a " +
+						routerClass + " at " + host);
+			}
+			if (!Double.isInfinite(energy)) {
+				host.getComBus().updateProperty(EnergyModel.ENERGY_VALUE_ID,
+						energy);
+			}
+			if (router instanceof Checkpointable) {
+				((Checkpointable)router).readState(in);
+			}
+			if (in.buffer.position() != end) {
+				throw new SimError("Corrupt checkpoint " + file + " at " +
+						host);
+			}
+		}
+		pending = false;
+		created = new HashMap<String, Message>();
+	}
+
+	/**
+	 * Maps a checkpoint file to memory and checks its header
+	 */
+	private static ByteBuffer map(File file) {
+		FileChannel channel = null;
+		ByteBuffer buffer;
+
+		try {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size());
+		} catch (IOException e) {
+			throw new SimError("Can't read checkpoint " + file + ": " +
+					e.getMessage());
+		} finally {
+			if (channel != null) {
+				try {
+					channel.close(); /* the mapping stays valid */
+				} catch (IOException e) { }
+			}
+		}
+
+		if (buffer.capacity() < 16 || buffer.getInt(0) != MAGIC) {
+			throw new SimError(file + " is not a router checkpoint");
+		}
+		if (buffer.getInt(4) != VERSION) {
+			throw new SimError("Checkpoint " + file + " has version " +
+					buffer.getInt(4) + " instead of " + VERSION);
+		}
+		return buffer;
+	}
+
+	/**
+	 * Resets the static state for a new simulation run
+	 */
+	public static void reset() {
+		pending = false;
+		created = new HashMap<String, Message>();
+	}
+
+	/**
+	 * Where the routers write their state
+	 */
+	public static class Output {
+		private ByteArrayOutputStream bytes;
+		private DataOutputStream data;
+		/** the string table, shared by all the hosts' blocks */
+		private Map<String, Integer> strings;
+		private List<String> table;
+
+		private Output() {
+			this.bytes = new ByteArrayOutputStream();
+			this.data = new DataOutputStream(bytes);
+			this.strings = new HashMap<String, Integer>();
+			this.table = new ArrayList<String>();
+		}
+
+		/** creates an output for a block that shares the string table */
+		private Output(Output parent) {
+			this.bytes = new ByteArrayOutputStream();
+			this.data = new DataOutputStream(bytes);
+			this.strings = parent.strings;
+			this.table = parent.table;
+		}
+
+		public void writeInt(int value) throws IOException {
+			data.writeInt(value);
+		}
+
+		public void writeLong(long value) throws IOException {
+			data.writeLong(value);
+		}
+
+		public void writeDouble(double value) throws IOException {
+			data.writeDouble(value);
+		}
+
+		public void writeBoolean(boolean value) throws IOException {
+			data.writeByte(value ? 1 : 0);
+		}
+
+		/**
+		 * Writes a host as its address
+		 * @param host The host
+		 * @throws IOException if writing fails
+		 */
+		public void writeHost(DTNHost host) throws IOException {
+			data.writeInt(host.getAddress());
+		}
+
+		/**
+		 * Writes a string as a reference to the string table
+		 * @param s The string
+		 * @throws IOException if writing fails
+		 */
+		public void writeString(String s) throws IOException {
+			Integer index = strings.get(s);
+			if (index == null) {
+				index = table.size();
+				table.add(s);
+				strings.put(s, index);
+			}
+			data.writeInt(index);
+		}
+
+		/**
+		 * Writes a location
+		 * @param c The location or null
+		 * @throws IOException if writing fails
+		 */
+		public void writeCoord(Coord c) throws IOException {
+			writeBoolean(c != null);
+			if (c != null) {
+				data.writeDouble(c.getX());
+				data.writeDouble(c.getY());
+			}
+		}
+
+		/**
+		 * Writes the state of a random number generator
+		 * @param rng The generator or null
+		 * @throws IOException if writing fails
+		 */
+		public void writeRandom(Random rng) throws IOException {
+			writeBoolean(rng != null);
+			if (rng != null) {
+				ByteArrayOutputStream b = new ByteArrayOutputStream();
+				ObjectOutputStream o = new ObjectOutputStream(b);
+				o.writeObject(rng);
+				o.close();
+				data.writeInt(b.size());
+				b.writeTo(data);
+			}
+		}
+
+		/**
+		 * Writes the peers of connections
+		 * @param connections The connections
+		 * @param host The host whose connections they are
+		 * @throws IOException if writing fails
+		 */
+		public void writePeers(Collection<Connection> connections,
+				DTNHost host) throws IOException {
+			data.writeInt(connections.size());
+			for (Connection con : connections) {
+				writeHost(con.getOtherNode(host));
+			}
+		}
+
+		/**
+		 * Writes message receive times (or other times) by message ID
+		 * @param times The times
+		 * @throws IOException if writing fails
+		 */
+		public void writeTimes(Map<String, Double> times) throws IOException {
+			data.writeInt(times.size());
+			for (Map.Entry<String, Double> e : times.entrySet()) {
+				writeString(e.getKey());
+				data.writeDouble(e.getValue());
+			}
+		}
+
+		/**
+		 * Writes the messages in a router's buffer
+		 * @param router The router
+		 * @throws IOException if writing fails
+		 */
+		public void writeBuffer(MessageRouter router) throws IOException {
+			Collection<Message> messages = router.getMessageCollection();
+
+			data.writeInt(messages.size());
+			for (Message m : messages) {
+				List<DTNHost> hops = m.getHops();
+				writeString(m.getId());
+				data.writeDouble(m.getCreationTime());
+				data.writeDouble(m.getReceiveTime());
+				data.writeInt(hops.size());
+				for (DTNHost hop : hops) {
+					writeHost(hop);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Where the routers read their state from
+	 */
+	public static class Input {
+		private ByteBuffer buffer;
+		private String[] strings;
+		private List<DTNHost> hosts;
+
+		private Input(ByteBuffer buffer, List<DTNHost> hosts) {
+			this.buffer = buffer;
+			this.hosts = hosts;
+			buffer.position(16);
+			this.strings = new String[buffer.getInt()];
+			for (int i = 0; i < strings.length; i++) {
+				byte[] b = new byte[buffer.getInt()];
+				buffer.get(b);
+				strings[i] = new String(b, UTF8);
+			}
+		}
+
+		public int readInt() {
+			return buffer.getInt();
+		}
+
+		public long readLong() {
+			return buffer.getLong();
+		}
+
+		public double readDouble() {
+			return buffer.getDouble();
+		}
+
+		public boolean readBoolean() {
+			return buffer.get() != 0;
+		}
+
+		public String readString() {
+			return strings[buffer.getInt()];
+		}
+
+		/**
+		 * Reads a host written as its address
+		 * @return The host
+		 */
+		public DTNHost readHost() {
+			int address = buffer.getInt();
+			if (address < 0 || address >= hosts.size()) {
+				throw new SimError("No host " + address + " for a checkpoint");
+			}
+			return hosts.get(address);
+		}
+
+		/**
+		 * Reads a location
+		 * @return The location or null
+		 */
+		public Coord readCoord() {
+			if (!readBoolean()) {
+				return null;
+			}
+			double x = buffer.getDouble();
+			return new Coord(x, buffer.getDouble());
+		}
+
+		/**
+		 * Reads the state of a random number generator
+		 * @return A generator in the written state or null
+		 */
+		public Random readRandom() {
+			if (!readBoolean()) {
+				return null;
+			}
+			byte[] b = new byte[buffer.getInt()];
+			buffer.get(b);
+			try {
+				ObjectInputStream o = new ObjectInputStream(
+						new ByteArrayInputStream(b));
+				return (Random)o.readObject();
+			} catch (IOException e) {
+				throw new SimError("Corrupt random state in a checkpoint: " +
+						e.getMessage());
+			} catch (ClassNotFoundException e) {
+				throw new SimError("Corrupt random state in a checkpoint: " +
+						e.getMessage());
+			}
+		}
+
+		/**
+		 * Reads the peers of connections and adds the host's current
+		 * connections to them to a collection
+		 * @param host The host whose connections they are
+		 * @param connections Where to add the connections
+		 */
+		public void readPeers(DTNHost host,
+				Collection<Connection> connections) {
+			int n = buffer.getInt();
+			for (int i = 0; i < n; i++) {
+				Connection con = readConnection(host);
+				if (con != null) {
+					connections.add(con);
+				}
+			}
+		}
+
+		/**
+		 * Reads the peer of a connection
+		 * @param host The host whose connection it is
+		 * @return The host's current connection to the peer or null if
+		 * there is none
+		 */
+		public Connection readConnection(DTNHost host) {
+			DTNHost peer = readHost();
+			List<Connection> connections = host.getConnections();
+			for (int i = 0; i < connections.size(); i++) {
+				if (connections.get(i).getOtherNode(host) == peer) {
+					return connections.get(i);
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Reads times by message ID
+		 * @param times Where to put the times
+		 */
+		public void readTimes(Map<String, Double> times) {
+			int n = buffer.getInt();
+			for (int i = 0; i < n; i++) {
+				String id = readString();
+				times.put(id, buffer.getDouble());
+			}
+		}
+
+		/**
+		 * Replaces the messages in a router's buffer with the written ones.
+		 * The messages are copies of the ones created in this run while
+		 * fast-forwarding, with the written path and receive time.
+		 * @param router The router
+		 */
+		public void readBuffer(MessageRouter router) {
+			List<String> ids = new ArrayList<String>();
+			for (Message m : router.getMessageCollection()) {
+				ids.add(m.getId());
+			}
+			for (String id : ids) {
+				router.removeFromMessages(id);
+			}
+
+			int n = buffer.getInt();
+			for (int i = 0; i < n; i++) {
+				String id = readString();
+				double creationTime = buffer.getDouble();
+				double receiveTime = buffer.getDouble();
+				int nrofHops = buffer.getInt();
+				Message original = created.get(id);
+				if (original == null ||
+						original.getCreationTime() != creationTime) {
+					throw new SimError("Message " + id + " of the checkpoint " +
+							"was not created the same way in this run");
+				}
+
+				Message m = original.replicate();
+				readHost(); /* the source, already on the path */
+				for (int j = 1; j < nrofHops; j++) {
+					m.addNodeOnPath(readHost());
+				}
+				m.setReceiveTime(receiveTime);
+				router.addToMessages(m, false);
+			}
+		}
+	}
+}
@@ -0,0 +1,391 @@
+/*
+ * Released under GPLv3. See LICENSE.txt for details.
+ */
+package routing;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import core.DTNHost;
+import core.DTNSim;
+import core.Settings;
+import core.SimError;
+import core.SimScenario;
+
+/**
+ * Counters of the routing decisions of one host's router. Counters are
+ * updated without locks, so they can be left on in all runs; routers
+ * count events of a whole update locally and add them at once where they
+ * can. The counters of all hosts are available through
+ * {@link #getAll()} (see report.RoutingMetricsReport) and the totals of
+ * each router class through JMX as
+ * <code>routing:type=RoutingMetrics,scenario="&lt;scenario name&gt;",
+ * router=&lt;class name&gt;</code>. Runs of the same JVM (see
+ * toolkit.SweepRunner) have their own beans: if another run already has
+ * the scenario name, <code>#2</code>, <code>#3</code>, ... is appended to
+ * it, and a run only unregisters its own beans.
+ */
+public class RoutingMetrics {
+	/** (message, peer) pairs evaluated for replication */
+	public static final int CANDIDATES = 0;
+	/** candidates skipped because the peer's energy is below threshold */
+	public static final int LOW_ENERGY_SKIPS = 1;
+	/** candidates skipped because the peer already has the message */
+	public static final int HAS_MESSAGE_SKIPS = 2;
+	/** candidates purged because the peer's delivered map acks them */
+	public static final int DELIVERED_PURGES = 3;
+	/** acknowledgements sent for messages delivered to the host */
+	public static final int ACKS_SENT = 4;
+	/** FloatingContent buffer zone replication decisions */
+	public static final int REPLICATION_DRAWS = 5;
+	/** buffer zone decisions that replicated the message */
+	public static final int REPLICATION_WINS = 6;
+	/** buffer zone decisions that did not replicate the message */
+	public static final int REPLICATION_LOSSES = 7;
+	/** buffered messages purged because a peer's delivered registry has them */
+	public static final int SUMMARY_PURGES = 8;
+	/** candidates skipped because the contact is predicted to end first */
+	public static final int SHORT_CONTACT_SKIPS = 9;
+	/** started transfers that were aborted when the contact ended */
+	public static final int ABORTED_TRANSFERS = 10;
+	/** energy spent on the sent parts of aborted transfers */
+	public static final int ABORTED_ENERGY = 11;
+	/** updates skipped by the duty cycle */
+	public static final int SLEPT_UPDATES = 12;
+	/** relayed messages refused by the duty cycle */
+	public static final int DUTY_CYCLE_REFUSALS = 13;
+	/** updates skipped because nothing had changed since the last one */
+	public static final int QUIET_UPDATES = 14;
+	/** Number of different counters */
+	public static final int NROF_COUNTERS = 15;
+	/** Names of the counters, in counter index order */
+	public static final String[] NAMES = {"candidates", "lowEnergySkips",
+		"hasMessageSkips", "deliveredPurges", "acksSent", "replicationDraws",
+		"replicationWins", "replicationLosses", "summaryPurges",
+		"shortContactSkips", "abortedTransfers", "abortedEnergy",
+		"sleptUpdates", "dutyCycleRefusals", "quietUpdates"};
+	/**
+	 * Energy counters count energy units divided by this ({@value}), i.e.
+	 * they are in thousandths of energy units
+	 */
+	public static final double ENERGY_UNIT = 0.001;
+	/** JMX object name prefix of the router class totals ({@value}) */
+	public static final String MBEAN_NAME = "routing:type=RoutingMetrics";
+
+	private static List<RoutingMetrics> all;
+	private static Map<String, ClassMetrics> classes;
+
+	private String routerClass;
+	private DTNHost host;
+	private LongAdder[] counters;
+
+	static {
+		DTNSim.registerForReset(RoutingMetrics.class.getCanonicalName());
+		reset();
+	}
+
+	private RoutingMetrics(String routerClass, DTNHost host) {
+		this.routerClass = routerClass;
+		this.host = host;
+		this.counters = new LongAdder[NROF_COUNTERS];
+		for (int i = 0; i < NROF_COUNTERS; i++) {
+			this.counters[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Creates the counters of a router
+	 * @param router The router (must be initialized with its host)
+	 * @return The counters
+	 */
+	public static synchronized RoutingMetrics register(MessageRouter router) {
+		String name = router.getClass().getSimpleName();
+		RoutingMetrics metrics = new RoutingMetrics(name, router.getHost());
+		ClassMetrics cm = classes.get(name);
+
+		if (cm == null) {
+			cm = new ClassMetrics(name);
+			cm.register(new Settings(SimScenario.SCENARIO_NS).getSetting(
+					SimScenario.NAME_S));
+			classes.put(name, cm);
+		}
+		cm.hosts.add(metrics);
+		all.add(metrics);
+		return metrics;
+	}
+
+	/**
+	 * Increments a counter by one
+	 * @param counter Index of the counter
+	 */
+	public void increment(int counter) {
+		counters[counter].increment();
+	}
+
+	/**
+	 * Adds to a counter
+	 * @param counter Index of the counter
+	 * @param n How much to add
+	 */
+	public void add(int counter, long n) {
+		if (n != 0) {
+			counters[counter].add(n);
+		}
+	}
+
+	/**
+	 * Adds energy to an energy counter
+	 * @param counter Index of the counter
+	 * @param energy The energy (energy units)
+	 */
+	public void addEnergy(int counter, double energy) {
+		add(counter, toCount(energy));
+	}
+
+	/**
+	 * Converts energy to the units of the energy counters
+	 * @param energy The energy (energy units)
+	 * @return The counter value
+	 */
+	public static long toCount(double energy) {
+		return Math.round(energy / ENERGY_UNIT);
+	}
+
+	/**
+	 * Returns true if a counter counts energy instead of events
+	 * @param counter Index of the counter
+	 * @return True for {@link #ABORTED_ENERGY}
+	 */
+	public static boolean isEnergy(int counter) {
+		return counter == ABORTED_ENERGY;
+	}
+
+	/**
+	 * Returns the value of a counter
+	 * @param counter Index of the counter
+	 * @return The value
+	 */
+	public long get(int counter) {
+		return counters[counter].sum();
+	}
+
+	/**
+	 * Returns the (simple) class name of the router
+	 * @return The class name
+	 */
+	public String getRouterClass() {
+		return this.routerClass;
+	}
+
+	/**
+	 * Returns the host of the router
+	 * @return The host
+	 */
+	public DTNHost getHost() {
+		return this.host;
+	}
+
+	/**
+	 * Returns the counters of all routers, in the order they were created
+	 * @return The counters
+	 */
+	public static synchronized List<RoutingMetrics> getAll() {
+		return new ArrayList<RoutingMetrics>(all);
+	}
+
+	/**
+	 * Returns the names of the router classes that have counters
+	 * @return The router class names
+	 */
+	public static synchronized List<String> getRouterClasses() {
+		return new ArrayList<String>(classes.keySet());
+	}
+
+	/**
+	 * Returns the total of a counter over all routers of a class
+	 * @param routerClass The router class name
+	 * @param counter Index of the counter
+	 * @return The total or 0 if there are no routers of the class
+	 */
+	public static synchronized long getTotal(String routerClass, int counter) {
+		ClassMetrics cm = classes.get(routerClass);
+		return cm == null ? 0 : cm.getTotal(counter);
+	}
+
+	/**
+	 * Resets the counters for a new simulation run
+	 */
+	public static synchronized void reset() {
+		if (classes != null) {
+			for (ClassMetrics cm : classes.values()) {
+				cm.unregister();
+			}
+		}
+		all = new ArrayList<RoutingMetrics>();
+		classes = new LinkedHashMap<String, ClassMetrics>();
+	}
+
+	/**
+	 * JMX view of the counter totals of one router class
+	 */
+	public interface RouterMetricsMXBean {
+		public int getNrofHosts();
+		public long getCandidates();
+		public long getLowEnergySkips();
+		public long getHasMessageSkips();
+		public long getDeliveredPurges();
+		public long getAcksSent();
+		public long getReplicationDraws();
+		public long getReplicationWins();
+		public long getReplicationLosses();
+		public long getSummaryPurges();
+		public long getShortContactSkips();
+		public long getAbortedTransfers();
+		public double getAbortedEnergy();
+		public long getSleptUpdates();
+		public long getDutyCycleRefusals();
+		public long getQuietUpdates();
+	}
+
+	/**
+	 * The counters of all the routers of one class
+	 */
+	public static class ClassMetrics implements RouterMetricsMXBean {
+		private String routerClass;
+		private List<RoutingMetrics> hosts;
+		/** name of the registered bean, null if not registered */
+		private ObjectName objectName;
+
+		public ClassMetrics(String routerClass) {
+			this.routerClass = routerClass;
+			this.hosts = Collections.synchronizedList(
+					new ArrayList<RoutingMetrics>());
+		}
+
+		/**
+		 * Registers the bean under the first free name of the scenario
+		 * @param scenario Name of the run's scenario
+		 */
+		private void register(String scenario) {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			try {
+				for (int n = 1; objectName == null; n++) {
+					ObjectName name = new ObjectName(MBEAN_NAME + ",scenario=" +
+							ObjectName.quote(n == 1 ? scenario : scenario + "#" + n) +
+							",router=" + routerClass);
+					try {
+						server.registerMBean(this, name);
+						objectName = name;
+					} catch (InstanceAlreadyExistsException e) {
+						/* another run has the name; try the next one */
+					}
+				}
+			} catch (JMException e) {
+				throw new SimError("Can't register routing metrics of " +
+						routerClass + ": " + e.getMessage());
+			}
+		}
+
+		private void unregister() {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			try {
+				if (objectName != null) {
+					server.unregisterMBean(objectName);
+					objectName = null;
+				}
+			} catch (JMException e) {
+				throw new SimError("Can't unregister routing metrics of " +
+						routerClass + ": " + e.getMessage());
+			}
+		}
+
+		/**
+		 * Returns the total of a counter over the routers of the class
+		 * @param counter Index of the counter
+		 * @return The total
+		 */
+		public long getTotal(int counter) {
+			long total = 0;
+			synchronized (hosts) {
+				for (RoutingMetrics m : hosts) {
+					total += m.get(counter);
+				}
+			}
+			return total;
+		}
+
+		public int getNrofHosts() {
+			return hosts.size();
+		}
+
+		public long getCandidates() {
+			return getTotal(CANDIDATES);
+		}
+
+		public long getLowEnergySkips() {
+			return getTotal(LOW_ENERGY_SKIPS);
+		}
+
+		public long getHasMessageSkips() {
+			return getTotal(HAS_MESSAGE_SKIPS);
+		}
+
+		public long getDeliveredPurges() {
+			return getTotal(DELIVERED_PURGES);
+		}
+
+		public long getAcksSent() {
+			return getTotal(ACKS_SENT);
+		}
+
+		public long getReplicationDraws() {
+			return getTotal(REPLICATION_DRAWS);
+		}
+
+		public long getReplicationWins() {
+			return getTotal(REPLICATION_WINS);
+		}
+
+		public long getReplicationLosses() {
+			return getTotal(REPLICATION_LOSSES);
+		}
+
+		public long getSummaryPurges() {
+			return getTotal(SUMMARY_PURGES);
+		}
+
+		public long getShortContactSkips() {
+			return getTotal(SHORT_CONTACT_SKIPS);
+		}
+
+		public long getAbortedTransfers() {
+			return getTotal(ABORTED_TRANSFERS);
+		}
+
+		public double getAbortedEnergy() {
+			return getTotal(ABORTED_ENERGY) * ENERGY_UNIT;
+		}
+
+		public long getSleptUpdates() {
+			return getTotal(SLEPT_UPDATES);
+		}
+
+		public long getDutyCycleRefusals() {
+			return getTotal(DUTY_CYCLE_REFUSALS);
+		}
+
+		public long getQuietUpdates() {
+			return getTotal(QUIET_UPDATES);
+		}
+	}
+}
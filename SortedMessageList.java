@@ -0,0 +1,138 @@
+/* 
+ * Released under GPLv3. See LICENSE.txt for details. 
+ */
+package routing;
+
+import java.util.Arrays;
+import java.util.List;
+
+import core.Message;
+
+/**
+ * List of messages kept sorted by a precomputed priority key, smallest key
+ * first. Messages with equal keys are kept in the order they were added.
+ * The key of a message is given when it is added and never recomputed, so
+ * keeping the list sorted costs a binary search and an array copy per
+ * added or removed message instead of a full sort per use. The keys are
+ * also stored by the {@link MessageIndex} of the messages, so a removed
+ * message is found with a binary search too. A message can be in the list
+ * only once.
+ */
+public class SortedMessageList {
+	private static final int INITIAL_CAPACITY = 16;
+	
+	private Message[] messages;
+	private double[] keys;
+	private int size;
+	/** key of each message in the list by message index, NaN if not in it */
+	private double[] keysByIndex;
+	
+	/**
+	 * Creates a new, empty list
+	 */
+	public SortedMessageList() {
+		this.messages = new Message[INITIAL_CAPACITY];
+		this.keys = new double[INITIAL_CAPACITY];
+		this.keysByIndex = new double[INITIAL_CAPACITY];
+		Arrays.fill(keysByIndex, Double.NaN);
+	}
+	
+	/**
+	 * Adds a message to its place in the list
+	 * @param m The message
+	 * @param key Priority key of the message (smaller comes first)
+	 */
+	public void add(Message m, double key) {
+		if (size == messages.length) {
+			messages = Arrays.copyOf(messages, size * 2);
+			keys = Arrays.copyOf(keys, size * 2);
+		}
+		
+		/* insert after all the messages with key <= the new key */
+		int low = 0, high = size;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (keys[mid] <= key) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		System.arraycopy(messages, low, messages, low + 1, size - low);
+		System.arraycopy(keys, low, keys, low + 1, size - low);
+		messages[low] = m;
+		keys[low] = key;
+		size++;
+		
+		int index = MessageIndex.of(m.getId());
+		if (index >= keysByIndex.length) {
+			int old = keysByIndex.length;
+			keysByIndex = Arrays.copyOf(keysByIndex, 
+					Math.max(index + 1, old * 2));
+			Arrays.fill(keysByIndex, old, keysByIndex.length, Double.NaN);
+		}
+		keysByIndex[index] = key;
+	}
+	
+	/**
+	 * Removes a message from the list
+	 * @param m The message to remove
+	 * @return True if the message was in the list
+	 */
+	public boolean remove(Message m) {
+		int index = MessageIndex.of(m.getId());
+		if (index >= keysByIndex.length || Double.isNaN(keysByIndex[index])) {
+			return false;
+		}
+		double key = keysByIndex[index];
+		
+		/* the first message with the key, then the right one of the equals */
+		int low = 0, high = size;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (keys[mid] < key) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		for (int i = low; i < size && keys[i] == key; i++) {
+			if (messages[i] == m) {
+				size--;
+				System.arraycopy(messages, i + 1, messages, i, size - i);
+				System.arraycopy(keys, i + 1, keys, i, size - i);
+				messages[size] = null;
+				keysByIndex[index] = Double.NaN;
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Returns the message at the given position
+	 * @param index The position (0 is the message with the smallest key)
+	 * @return The message
+	 */
+	public Message get(int index) {
+		return messages[index];
+	}
+	
+	/**
+	 * Returns the number of messages in the list
+	 * @return The number of messages
+	 */
+	public int size() {
+		return this.size;
+	}
+	
+	/**
+	 * Appends all the messages, in order, to the given list
+	 * @param list The list to append to
+	 */
+	public void copyTo(List<Message> list) {
+		for (int i = 0; i < size; i++) {
+			list.add(messages[i]);
+		}
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * Released under GPLv3. See LICENSE.txt for details.
+ */
+package routing;
+
+import java.util.Arrays;
+import java.util.List;
+
+import core.Connection;
+import core.DTNHost;
+
+/**
+ * The state of a router and its peers that the router's transfer
+ * decisions depend on: the router's own change epoch and, for each
+ * connection, the peer's change epoch, whether the peer is transferring
+ * and whether it is above the energy threshold (see
+ * {@link ChangeTracking}). A signature is recorded when a decision is
+ * made and later compared to the current state; as long as it matches,
+ * the decision still holds. Decisions that change with time alone can
+ * be given a time until which the signature holds.
+ */
+public class StateSignature {
+	private long[] inputs;
+	private int nrofInputs;
+	/** simulation time until which the signature holds */
+	private double until;
+
+	/**
+	 * Creates a signature that matches nothing
+	 */
+	public StateSignature() {
+		this.inputs = new long[16];
+		clear();
+	}
+
+	/**
+	 * Forgets the recorded state, so that the signature matches nothing
+	 */
+	public void clear() {
+		this.nrofInputs = 0;
+		this.until = Double.NEGATIVE_INFINITY;
+	}
+
+	/**
+	 * Records the current state of a router and its peers. If a peer
+	 * doesn't keep a change epoch, nothing is recorded.
+	 * @param router The router (a {@link ChangeTracking})
+	 * @param threshold Energy eligibility of the router's peers
+	 * @param until Simulation time until which the signature holds
+	 * (positive infinity if it only depends on the recorded state)
+	 */
+	public void record(ActiveRouter router, EnergyThreshold threshold,
+			double until) {
+		this.until = until;
+		if (!check(router, threshold, true)) {
+			clear();
+		}
+	}
+
+	/**
+	 * Returns true if the recorded state is the current state
+	 * @param router The router (a {@link ChangeTracking})
+	 * @param threshold Energy eligibility of the router's peers
+	 * @param now Current simulation time
+	 * @return True if the state has not changed since it was recorded
+	 */
+	public boolean matches(ActiveRouter router, EnergyThreshold threshold,
+			double now) {
+		return now < until && check(router, threshold, false);
+	}
+
+	/**
+	 * Records (or compares to the recorded) state
+	 * @return True if recorded or if the state matched the recorded one
+	 */
+	private boolean check(ActiveRouter router, EnergyThreshold threshold,
+			boolean record) {
+		DTNHost host = router.getHost();
+		List<Connection> connections = host.getConnections();
+		int i = 0;
+
+		if (!record && nrofInputs != 1 + connections.size() * 3) {
+			return false;
+		}
+		if (!check(i++, ((ChangeTracking)router).getChangeEpoch(), record)) {
+			return false;
+		}
+		for (int j = 0; j < connections.size(); j++) {
+			Connection con = connections.get(j);
+			DTNHost other = con.getOtherNode(host);
+			MessageRouter r = other.getRouter();
+			if (!(r instanceof ChangeTracking)) {
+				return false;
+			}
+			boolean transferring = ((ActiveRouter)r).isTransferring();
+			boolean eligible = threshold.isEligible(other);
+
+			if (!check(i++, ((ChangeTracking)r).getChangeEpoch(), record) ||
+					!check(i++, transferring ? 1 : 0, record) ||
+					!check(i++, eligible ? 1 : 0, record)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean check(int i, long value, boolean record) {
+		if (!record) {
+			return inputs[i] == value;
+		}
+		if (i == inputs.length) {
+			inputs = Arrays.copyOf(inputs, i * 2);
+		}
+		inputs[i] = value;
+		nrofInputs = i + 1;
+		return true;
+	}
+}
@@ -0,0 +1,63 @@
+/*
+ * Released under GPLv3. See LICENSE.txt for details.
+ */
+package routing;
+
+import core.Coord;
+
+/**
+ * A host's row in the per-tick location table of the FloatingContent
+ * routers: the position the host perceives (its GPS reading, with error)
+ * and the position it infers from its peers on the current simulation
+ * tick. Each router keeps the row of its own host and its peers read
+ * that row instead of taking the readings again. The true position is
+ * the host's own location and needs no copy.
+ * <P>The router only caches a GPS reading if it is taken at most once
+ * per tick anyway (see <code>E_FloatingContentRouter.getLocation</code>),
+ * so the error draws are made exactly as often, and in the same order,
+ * as without the table and the runs stay reproducible.</P>
+ */
+public class TickLocation {
+	/** simulation time of the cached reading (NaN if none) */
+	private double perceivedTime;
+	private Coord perceived;
+	private Coord inferred;
+
+	/**
+	 * Creates an empty row
+	 */
+	public TickLocation() {
+		this.perceivedTime = Double.NaN;
+		this.inferred = new Coord(-1, -1);
+	}
+
+	/**
+	 * Returns the GPS reading cached on this tick
+	 * @param now Current simulation time
+	 * @return The reading or null if none has been cached on this tick
+	 */
+	public Coord getPerceived(double now) {
+		return perceivedTime == now ? perceived : null;
+	}
+
+	/**
+	 * Caches the GPS reading of this tick
+	 * @param location The reading
+	 * @param now Current simulation time
+	 */
+	public void setPerceived(Coord location, double now) {
+		this.perceived = location;
+		this.perceivedTime = now;
+	}
+
+	/**
+	 * Sets the position inferred from the peers on this tick
+	 * @param x The x coordinate
+	 * @param y The y coordinate
+	 * @return The inferred position (the same object on every tick)
+	 */
+	public Coord setInferred(double x, double y) {
+		this.inferred.setLocation(x, y);
+		return this.inferred;
+	}
+}
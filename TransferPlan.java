@@ -0,0 +1,100 @@
+/* 
+ * Released under GPLv3. See LICENSE.txt for details. 
+ */
+package routing;
+
+import java.util.Arrays;
+
+import core.Connection;
+import core.Message;
+
+/**
+ * The (message, connection) pairs a router wants to offer during one
+ * update, in the order they should be tried. All the pairs of a message
+ * are stored next to each other until the plan is reordered by a
+ * {@link TransmissionScheduler}. The plan is meant to be cleared and
+ * refilled on every update, so its arrays are allocated only when they
+ * need to grow.
+ */
+public class TransferPlan {
+	private static final int INITIAL_CAPACITY = 32;
+	
+	private Message[] messages;
+	private Connection[] connections;
+	private int size;
+	
+	/**
+	 * Creates a new, empty plan
+	 */
+	public TransferPlan() {
+		this.messages = new Message[INITIAL_CAPACITY];
+		this.connections = new Connection[INITIAL_CAPACITY];
+	}
+	
+	/**
+	 * Appends a pair to the plan
+	 * @param m The message to offer
+	 * @param con The connection to offer it over
+	 */
+	public void add(Message m, Connection con) {
+		if (size == messages.length) {
+			messages = Arrays.copyOf(messages, size * 2);
+			connections = Arrays.copyOf(connections, size * 2);
+		}
+		messages[size] = m;
+		connections[size] = con;
+		size++;
+	}
+	
+	/**
+	 * Returns the message of a pair
+	 * @param index Index of the pair
+	 * @return The message
+	 */
+	public Message getMessage(int index) {
+		return messages[index];
+	}
+	
+	/**
+	 * Returns the connection of a pair
+	 * @param index Index of the pair
+	 * @return The connection
+	 */
+	public Connection getConnection(int index) {
+		return connections[index];
+	}
+	
+	/**
+	 * Returns the number of pairs in the plan
+	 * @return The number of pairs
+	 */
+	public int size() {
+		return this.size;
+	}
+	
+	/**
+	 * Offers the pairs to a router's transfer layer in plan order until
+	 * one of the transfers starts
+	 * @param router The sending router
+	 * @return The connection of the started transfer or null if none
+	 * started
+	 */
+	public Connection tryInOrder(ActiveRouter router) {
+		for (int i = 0; i < size; i++) {
+			if (router.startTransfer(messages[i], connections[i]) == 
+					MessageRouter.RCV_OK) {
+				return connections[i];
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Removes all the pairs from the plan
+	 */
+	public void clear() {
+		Arrays.fill(messages, 0, size, null);
+		Arrays.fill(connections, 0, size, null);
+		size = 0;
+	}
+}
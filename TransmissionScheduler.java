@@ -0,0 +1,274 @@
+/*
+ * Released under GPLv3. See LICENSE.txt for details.
+ */
+package routing;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import util.Tuple;
+import core.Connection;
+import core.DTNHost;
+import core.Message;
+
+/**
+ * Ranks a router's transfer candidates, (message, connection) pairs, by
+ * their expected delivery benefit per unit of energy and keeps the best
+ * {@link EnergyRouterConfig#getScheduleTopK() k} of them, best first.
+ * <P>The benefit of a pair is 1 if the peer is the message's destination
+ * and otherwise the configured relay benefit times the fraction of the
+ * message's TTL that is left. Pairs whose transfer would take longer
+ * than the remaining TTL have no benefit and are dropped. The cost is the
+ * energy the transfer takes (transmit energy times transfer time) as a
+ * fraction of the sender's and the receiver's remaining energy, so a
+ * joule costs more the emptier the batteries are. Hosts without an
+ * energy model don't add to the cost; if neither host has one, the cost
+ * is the transfer energy itself.</P>
+ * <P>The best pairs are selected with a bounded min-heap, so scheduling
+ * n candidates takes O(n log k) time and the candidates are never fully
+ * sorted. Pairs with equal scores keep their original order.</P>
+ */
+public class TransmissionScheduler {
+	private EnergyRouterConfig config;
+	/** candidate indices in a min-heap by score (worst kept pair on top) */
+	private int[] heap;
+	private double[] scores;
+	private int heapSize;
+	/** true if the last scheduling left out candidates with a benefit */
+	private boolean truncated;
+	private List<Tuple<Message, Connection>> scheduled;
+	/** scratch space for reordering transfer plans */
+	private Message[] messages;
+	private Connection[] connections;
+
+	/**
+	 * Creates a scheduler
+	 * @param config The router's energy settings
+	 */
+	public TransmissionScheduler(EnergyRouterConfig config) {
+		this.config = config;
+		this.heap = new int[Math.max(config.getScheduleTopK(), 1)];
+		this.scores = new double[16];
+		this.scheduled = new ArrayList<Tuple<Message, Connection>>();
+		this.messages = new Message[0];
+		this.connections = new Connection[0];
+	}
+
+	/**
+	 * Returns true if candidates are scheduled at all
+	 * @return False if the candidates should be tried in the order they
+	 * were selected
+	 */
+	public boolean isEnabled() {
+		return config.getScheduleTopK() > 0;
+	}
+
+	/**
+	 * Returns true if the last scheduling left out candidates only because
+	 * k better ones were kept. Scores change with time and energy, so such
+	 * candidates may make it to the top k later.
+	 * @return True if the last schedule was truncated
+	 */
+	public boolean isTruncated() {
+		return this.truncated;
+	}
+
+	/**
+	 * Schedules a candidate list
+	 * @param host The sending host
+	 * @param candidates The candidates in selection order
+	 * @param now Current simulation time
+	 * @return The best candidates, best first (a list owned by the
+	 * scheduler that is reused by the next call), or the candidates
+	 * themselves if scheduling is disabled
+	 */
+	public List<Tuple<Message, Connection>> schedule(DTNHost host,
+			List<Tuple<Message, Connection>> candidates, double now) {
+		if (!isEnabled()) {
+			return candidates;
+		}
+
+		heapSize = 0;
+		truncated = false;
+		growScores(candidates.size());
+		for (int i = 0; i < candidates.size(); i++) {
+			Tuple<Message, Connection> t = candidates.get(i);
+			offer(i, score(host, t.getKey(), t.getValue(), now));
+		}
+
+		scheduled.clear();
+		int n = drain();
+		for (int i = 0; i < n; i++) {
+			scheduled.add(candidates.get(heap[i]));
+		}
+		return scheduled;
+	}
+
+	/**
+	 * Schedules a transfer plan in place: the plan is reduced to its best
+	 * pairs, best first. Does nothing if scheduling is disabled.
+	 * @param host The sending host
+	 * @param plan The plan
+	 * @param now Current simulation time
+	 */
+	public void schedule(DTNHost host, TransferPlan plan, double now) {
+		if (!isEnabled()) {
+			return;
+		}
+
+		heapSize = 0;
+		truncated = false;
+		growScores(plan.size());
+		for (int i = 0; i < plan.size(); i++) {
+			offer(i, score(host, plan.getMessage(i), plan.getConnection(i),
+					now));
+		}
+
+		int n = drain();
+		if (messages.length < n) {
+			messages = new Message[heap.length];
+			connections = new Connection[heap.length];
+		}
+		for (int i = 0; i < n; i++) {
+			messages[i] = plan.getMessage(heap[i]);
+			connections[i] = plan.getConnection(heap[i]);
+		}
+		plan.clear();
+		for (int i = 0; i < n; i++) {
+			plan.add(messages[i], connections[i]);
+			messages[i] = null;
+			connections[i] = null;
+		}
+	}
+
+	/**
+	 * Returns the expected delivery benefit per unit of energy of a
+	 * transfer
+	 * @param host The sending host
+	 * @param m The message
+	 * @param con The connection to send it over
+	 * @param now Current simulation time
+	 * @return The score (0 if the transfer has no benefit)
+	 */
+	public double score(DTNHost host, Message m, Connection con, double now) {
+		DTNHost peer = con.getOtherNode(host);
+		double duration = m.getSize() / con.getSpeed();
+		if (Double.isInfinite(duration) || Double.isNaN(duration)) {
+			return 0;
+		}
+		double benefit = peer == m.getTo() ? 1 : config.getRelayBenefit();
+
+		int ttl = m.getTtl();
+		if (ttl != Integer.MAX_VALUE && ttl != Message.INFINITE_TTL) {
+			double left = ttl * 60.0;
+			if (duration > left) {
+				return 0; /* would expire before it arrives */
+			}
+			if (peer != m.getTo()) {
+				benefit *= left / (left + now - m.getCreationTime());
+			}
+		}
+
+		double joules = config.getTransmitEnergy() * duration;
+		double cost = joules * (share(host) + share(peer));
+		if (cost == 0) {
+			cost = joules;
+		}
+		return cost > 0 ? benefit / cost : benefit * Double.MAX_VALUE;
+	}
+
+	/**
+	 * Returns the inverse of a host's remaining energy (0 for hosts
+	 * without an energy model)
+	 */
+	private static double share(DTNHost host) {
+		double energy = EnergyView.getEnergy(host);
+		if (Double.isInfinite(energy)) {
+			return 0;
+		}
+		return 1 / Math.max(energy, Double.MIN_NORMAL);
+	}
+
+	private void growScores(int n) {
+		if (scores.length < n) {
+			scores = new double[Math.max(n, scores.length * 2)];
+		}
+	}
+
+	/**
+	 * Offers a candidate to the heap of the best k candidates
+	 */
+	private void offer(int index, double score) {
+		if (score <= 0) {
+			return;
+		}
+		scores[index] = score;
+		if (heapSize < heap.length) {
+			heap[heapSize] = index;
+			siftUp(heapSize++);
+		} else {
+			truncated = true;
+			if (worse(heap[0], index)) {
+				heap[0] = index;
+				siftDown(0, heapSize);
+			}
+		}
+	}
+
+	/**
+	 * Sorts the heap in place (heapsort) so that heap[0] is the best
+	 * candidate and heap[n-1] the worst
+	 * @return The number of candidates in the heap
+	 */
+	private int drain() {
+		int n = heapSize;
+		for (int end = n - 1; end > 0; end--) {
+			swap(0, end); /* the worst remaining one goes last */
+			siftDown(0, end);
+		}
+		heapSize = 0;
+		return n;
+	}
+
+	/**
+	 * Returns true if candidate a ranks below candidate b (a lower score,
+	 * or an equal score and a later position)
+	 */
+	private boolean worse(int a, int b) {
+		return scores[a] < scores[b] || (scores[a] == scores[b] && a > b);
+	}
+
+	private void siftUp(int i) {
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (!worse(heap[i], heap[parent])) {
+				return;
+			}
+			swap(i, parent);
+			i = parent;
+		}
+	}
+
+	private void siftDown(int i, int size) {
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= size) {
+				return;
+			}
+			if (child + 1 < size && worse(heap[child + 1], heap[child])) {
+				child++;
+			}
+			if (!worse(heap[child], heap[i])) {
+				return;
+			}
+			swap(i, child);
+			i = child;
+		}
+	}
+
+	private void swap(int i, int j) {
+		int tmp = heap[i];
+		heap[i] = heap[j];
+		heap[j] = tmp;
+	}
+}
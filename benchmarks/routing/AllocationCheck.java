@@ -0,0 +1,60 @@
+/*
+ * Released under GPLv3. See LICENSE.txt for details.
+ */
+package routing;
+
+import java.util.Collection;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs {@link SteadyStateBenchmark} with JMH's GC profiler and fails (exit
+ * status 1) if the update of any router allocates per operation.
+ * <P>Usage: <code>AllocationCheck [limit]</code>. The limit is in bytes per
+ * operation; the default ({@value #DEF_LIMIT}) only leaves room for the
+ * profiler's measurement noise, so a single object allocated on every
+ * update fails the check.</P>
+ */
+public class AllocationCheck {
+	/** Name of the profiler's normalized allocation rate result */
+	public static final String ALLOC_RATE_NORM = "gc.alloc.rate.norm";
+	/** Default allowed allocation (bytes/op) */
+	public static final double DEF_LIMIT = 1.0;
+
+	public static void main(String[] args) throws RunnerException {
+		double limit = args.length > 0 ? Double.parseDouble(args[0]) :
+			DEF_LIMIT;
+		Options opt = new OptionsBuilder()
+			.include(SteadyStateBenchmark.class.getSimpleName())
+			.addProfiler(GCProfiler.class)
+			.build();
+		Collection<RunResult> results = new Runner(opt).run();
+		int failed = 0;
+
+		System.out.println("--- allocation per update (limit " + limit +
+				" B/op)");
+		for (RunResult r : results) {
+			String router = r.getParams().getParam("router");
+			Result<?> alloc = r.getSecondaryResults().get(ALLOC_RATE_NORM);
+			if (alloc == null) {
+				System.out.println(router + ": no " + ALLOC_RATE_NORM);
+				failed++;
+				continue;
+			}
+			boolean ok = alloc.getScore() <= limit;
+			System.out.println(router + ": " +
+					String.format("%.3f", alloc.getScore()) + " B/op" +
+					(ok ? "" : "  FAILED"));
+			if (!ok) {
+				failed++;
+			}
+		}
+		System.exit(failed > 0 ? 1 : 0);
+	}
+}
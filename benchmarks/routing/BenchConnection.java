@@ -0,0 +1,31 @@
+/* 
+ * Released under GPLv3. See LICENSE.txt for details. 
+ */
+package routing;
+
+import core.CBRConnection;
+import core.DTNHost;
+
+/**
+ * Stand-in connection for the benchmarks. It has no network interfaces;
+ * transfers are started and aborted like on a real constant bit rate
+ * connection, so routers see the usual receive/abort callbacks.
+ */
+public class BenchConnection extends CBRConnection {
+	/** Transmit speed of the Bluetooth interface in the default settings */
+	public static final int SPEED = 250 * 1000;
+	
+	public BenchConnection(DTNHost from, DTNHost to) {
+		super(from, null, to, null, SPEED);
+	}
+	
+	/**
+	 * Aborts the transfer on this connection, if there is one, so that the
+	 * next benchmark invocation starts from the same state
+	 */
+	public void reset() {
+		if (getMessage() != null) {
+			abortTransfer();
+		}
+	}
+}
@@ -0,0 +1,57 @@
+/* 
+ * Released under GPLv3. See LICENSE.txt for details. 
+ */
+package routing;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import routing.util.EnergyModel;
+import core.Connection;
+import core.Coord;
+import core.DTNHost;
+import core.MessageListener;
+import core.ModuleCommunicationBus;
+import core.NetworkInterface;
+
+/**
+ * Stand-in host for the benchmarks. It has no network interfaces or
+ * movement; connections are created directly between hosts and the
+ * energy value is put on the ComBus like an energy model would do.
+ */
+public class BenchHost extends DTNHost {
+	private List<Connection> connections;
+	
+	/**
+	 * Creates a host
+	 * @param routerProto Prototype of the host's router
+	 * @param location Location of the host
+	 * @param energy Energy value of the host
+	 */
+	public BenchHost(MessageRouter routerProto, Coord location, double energy) {
+		super(new ArrayList<MessageListener>(), null, "b", 
+				new ArrayList<NetworkInterface>(), new ModuleCommunicationBus(), 
+				new BenchMovement(location), routerProto);
+		this.connections = new ArrayList<Connection>();
+		getComBus().addProperty(EnergyModel.ENERGY_VALUE_ID, energy);
+	}
+	
+	/**
+	 * Creates a connection to another host and tells both routers about it
+	 * @param other The other host
+	 * @return The new connection
+	 */
+	public BenchConnection connect(BenchHost other) {
+		BenchConnection con = new BenchConnection(this, other);
+		this.connections.add(con);
+		other.connections.add(con);
+		this.connectionUp(con);
+		other.connectionUp(con);
+		return con;
+	}
+	
+	@Override
+	public List<Connection> getConnections() {
+		return this.connections;
+	}
+}
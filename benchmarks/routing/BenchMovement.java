@@ -0,0 +1,41 @@
+/* 
+ * Released under GPLv3. See LICENSE.txt for details. 
+ */
+package routing;
+
+import movement.MovementModel;
+import movement.Path;
+import core.Coord;
+
+/**
+ * Stand-in movement model for the benchmarks: the host stays at its
+ * initial location and never asks for a path.
+ */
+public class BenchMovement extends MovementModel {
+	private Coord location;
+	
+	public BenchMovement(Coord location) {
+		super();
+		this.location = location;
+	}
+	
+	@Override
+	public Path getPath() {
+		return null;
+	}
+	
+	@Override
+	public Coord getInitialLocation() {
+		return location.clone();
+	}
+	
+	@Override
+	public double nextPathAvailable() {
+		return Double.MAX_VALUE;
+	}
+	
+	@Override
+	public BenchMovement replicate() {
+		return new BenchMovement(location);
+	}
+}
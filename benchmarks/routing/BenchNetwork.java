@@ -0,0 +1,178 @@
+/* 
+ * Released under GPLv3. See LICENSE.txt for details. 
+ */
+package routing;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import core.Coord;
+import core.DTNHost;
+import core.Message;
+import core.Settings;
+
+/**
+ * A star of stand-in hosts for the router benchmarks: one measured host
+ * with a full buffer in the middle, connected to a given number of
+ * neighbours whose energies are spread evenly between 0 and the initial
+ * energy, and one host that is never connected and is the destination of
+ * all the messages. Nothing moves and the clock does not advance.
+ */
+public class BenchNetwork {
+	/** Initial energy of the hosts in the default settings */
+	public static final double INITIAL_ENERGY = 5000;
+	/** Size of the benchmark messages (bytes) */
+	public static final int MESSAGE_SIZE = 500 * 1000;
+	
+	private BenchHost center;
+	private BenchHost destination;
+	private List<BenchHost> neighbours;
+	private List<BenchConnection> connections;
+	private int nextMessage;
+	
+	/**
+	 * Loads the settings the routers need
+	 * @param threshold Battery level threshold of all the routers
+	 * @param replicationPolicy FloatingContent replication policy
+	 */
+	public static void initSettings(int threshold, String replicationPolicy) 
+			throws IOException {
+		File f = File.createTempFile("bench_settings", ".txt");
+		f.deleteOnExit();
+		PrintWriter out = new PrintWriter(new FileWriter(f));
+		
+		out.println("Scenario.name = bench");
+		out.println("Scenario.nrofHostGroups = 1");
+		out.println("Group.speed = 0.5, 1.5");
+		out.println("bufferSize = 1000M");
+		out.println("msgTtl = 300");
+		out.println("nmcount = 0, 1000");
+		out.println("immunityTime = 600");
+		out.println("custodyFraction = 0.5");
+		for (String router : new String[] {"E_FirstContactRouter", 
+				"E_LifeRouter", "E_WaveRouter", "E_FloatingContentRouter"}) {
+			out.println(router + ".battery_level_threshold = " + threshold);
+		}
+		out.println("E_FloatingContentRouter.seed = 1");
+		out.println("E_FloatingContentRouter.replicationPolicy = " + 
+				replicationPolicy);
+		out.println("E_FloatingContentRouter.replicationAlgorithm = linear");
+		out.println("E_FloatingContentRouter.deletionAlgorithm = linear");
+		out.println("E_FloatingContentRouter.deletionPolicy = encounter");
+		out.close();
+		
+		Settings.init(f.getAbsolutePath());
+	}
+	
+	/**
+	 * Creates a router prototype
+	 * @param router Name of the router class (without the package)
+	 * @return The prototype
+	 */
+	public static MessageRouter createRouter(String router) {
+		Settings s = new Settings();
+		
+		if (router.equals("E_FirstContactRouter")) {
+			return new E_FirstContactRouter(s);
+		} else if (router.equals("E_LifeRouter")) {
+			return new E_LifeRouter(s);
+		} else if (router.equals("E_WaveRouter")) {
+			return new E_WaveRouter(s);
+		} else if (router.equals("E_FloatingContentRouter")) {
+			return new E_FloatingContentRouter(s);
+		}
+		throw new IllegalArgumentException("Unknown router " + router);
+	}
+	
+	/**
+	 * Creates the network
+	 * @param router Name of the router class of all the hosts
+	 * @param bufferSize Number of messages in the measured host's buffer
+	 * @param degree Number of neighbours of the measured host
+	 */
+	public BenchNetwork(String router, int bufferSize, int degree) {
+		MessageRouter proto = createRouter(router);
+		
+		DTNHost.reset();
+		this.center = new BenchHost(proto, new Coord(0, 0), INITIAL_ENERGY);
+		this.destination = new BenchHost(proto, new Coord(1000, 1000), 
+				INITIAL_ENERGY);
+		this.neighbours = new ArrayList<BenchHost>();
+		this.connections = new ArrayList<BenchConnection>();
+		
+		for (int i = 0; i < degree; i++) {
+			double angle = 2 * Math.PI * i / degree;
+			BenchHost n = new BenchHost(proto, 
+					new Coord(5 * Math.cos(angle), 5 * Math.sin(angle)), 
+					INITIAL_ENERGY * (i + 1) / degree);
+			neighbours.add(n);
+			connections.add(center.connect(n));
+		}
+		
+		for (int i = 0; i < bufferSize; i++) {
+			center.createNewMessage(newMessage(center));
+		}
+	}
+	
+	/**
+	 * Creates a new message to the destination host. The message has the
+	 * FloatingContent properties, anchored at the measured host.
+	 * @param from Source of the message
+	 * @return The message
+	 */
+	public Message newMessage(DTNHost from) {
+		Message m = new Message(from, destination, "B" + nextMessage, 
+				MESSAGE_SIZE);
+		nextMessage++;
+		m.addProperty(E_FloatingContentRouter.FC_ANCHOR, new Coord(0, 0));
+		m.addProperty(E_FloatingContentRouter.FC_R, 10.0 + nextMessage % 7);
+		m.addProperty(E_FloatingContentRouter.FC_A, 20.0 + nextMessage % 11);
+		m.addProperty(E_FloatingContentRouter.FC_TTL_VAL, 300.0);
+		return m;
+	}
+	
+	/**
+	 * Gives every neighbour a copy of each message in the measured host's
+	 * buffer, so that the measured host has nothing to offer and its
+	 * updates are the steady state ticks of a dense network
+	 */
+	public void shareMessages() {
+		List<Message> messages = new ArrayList<Message>(
+				center.getRouter().getMessageCollection());
+		for (BenchHost n : neighbours) {
+			for (Message m : messages) {
+				n.getRouter().addToMessages(m.replicate(), false);
+			}
+		}
+	}
+	
+	/**
+	 * Aborts all the transfers started since the last reset
+	 */
+	public void reset() {
+		for (BenchConnection con : connections) {
+			con.reset();
+		}
+	}
+	
+	/**
+	 * Returns the router of the measured host
+	 * @return The router
+	 */
+	public ActiveRouter getRouter() {
+		return (ActiveRouter)center.getRouter();
+	}
+	
+	/**
+	 * Returns the i:th neighbour of the measured host
+	 * @param i Index of the neighbour
+	 * @return The neighbour
+	 */
+	public DTNHost getNeighbour(int i) {
+		return neighbours.get(i);
+	}
+}
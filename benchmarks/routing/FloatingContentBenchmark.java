@@ -0,0 +1,65 @@
+/* 
+ * Released under GPLv3. See LICENSE.txt for details. 
+ */
+package routing;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of E_FloatingContentRouter.update() for the different replication
+ * policies. Run with <code>-prof gc</code> to see the allocation rate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FloatingContentBenchmark {
+	@Param({"fifo", "rnd", "saf", "svf", "svf2", "stf", "stf2"})
+	public String replicationPolicy;
+	
+	@Param({"10", "100", "1000"})
+	public int bufferSize;
+	
+	@Param({"1", "8", "32"})
+	public int degree;
+	
+	@Param({"600"})
+	public int threshold;
+	
+	private BenchNetwork network;
+	private ActiveRouter measured;
+	
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		BenchNetwork.initSettings(threshold, replicationPolicy);
+		network = new BenchNetwork("E_FloatingContentRouter", bufferSize, 
+				degree);
+		measured = network.getRouter();
+	}
+	
+	@TearDown(Level.Invocation)
+	public void abortTransfers() {
+		network.reset();
+	}
+	
+	@Benchmark
+	public void update() {
+		measured.update();
+	}
+}
@@ -0,0 +1,91 @@
+/* 
+ * Released under GPLv3. See LICENSE.txt for details. 
+ */
+package routing;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import core.DTNHost;
+import core.Message;
+
+/**
+ * Cost of the hot paths of the four energy-aware routers for different
+ * buffer sizes, node degrees and battery level thresholds. Run with
+ * <code>-prof gc</code> to see the allocation rate per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouterBenchmark {
+	@Param({"E_FirstContactRouter", "E_LifeRouter", "E_WaveRouter", 
+		"E_FloatingContentRouter"})
+	public String router;
+	
+	/** messages in the measured host's buffer */
+	@Param({"10", "100", "1000"})
+	public int bufferSize;
+	
+	/** neighbours of the measured host */
+	@Param({"1", "8", "32"})
+	public int degree;
+	
+	/** battery level threshold (out of 5000) */
+	@Param({"0", "600", "4000"})
+	public int threshold;
+	
+	private BenchNetwork network;
+	private ActiveRouter measured;
+	private DTNHost peer;
+	private Message incoming;
+	
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		BenchNetwork.initSettings(threshold, "fifo");
+		network = new BenchNetwork(router, bufferSize, degree);
+		measured = network.getRouter();
+		peer = network.getNeighbour(degree - 1);
+		incoming = network.newMessage(peer);
+	}
+	
+	@TearDown(Level.Invocation)
+	public void abortTransfers() {
+		network.reset();
+	}
+	
+	@Benchmark
+	public void update() {
+		measured.update();
+	}
+	
+	@Benchmark
+	public int checkReceiving() {
+		return measured.checkReceiving(incoming, peer);
+	}
+	
+	@Benchmark
+	public void receiveMessage(Blackhole bh) {
+		int result = measured.receiveMessage(incoming, peer);
+		if (result == MessageRouter.RCV_OK) {
+			measured.messageAborted(incoming.getId(), peer, 0);
+		}
+		bh.consume(result);
+	}
+}
@@ -0,0 +1,65 @@
+/*
+ * Released under GPLv3. See LICENSE.txt for details.
+ */
+package routing;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of an update() of the four energy-aware routers on a tick that
+ * starts no transfer: all the neighbours already have the measured host's
+ * messages. Such ticks are the bulk of a long simulation and should not
+ * allocate at all; {@link AllocationCheck} runs this benchmark with the
+ * GC profiler and fails if they do.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SteadyStateBenchmark {
+	@Param({"E_FirstContactRouter", "E_LifeRouter", "E_WaveRouter",
+		"E_FloatingContentRouter"})
+	public String router;
+
+	/** messages in the measured host's buffer */
+	@Param({"100"})
+	public int bufferSize;
+
+	/** neighbours of the measured host */
+	@Param({"8"})
+	public int degree;
+
+	/** battery level threshold (out of 5000) */
+	@Param({"600"})
+	public int threshold;
+
+	private ActiveRouter measured;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		BenchNetwork.initSettings(threshold, "fifo");
+		BenchNetwork network = new BenchNetwork(router, bufferSize, degree);
+		network.shareMessages();
+		measured = network.getRouter();
+	}
+
+	@Benchmark
+	public void update() {
+		measured.update();
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * Released under GPLv3. See LICENSE.txt for details.
+ */
+package report;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import routing.RouterCheckpoint;
+import core.DTNHost;
+import core.Settings;
+import core.SimError;
+import core.UpdateListener;
+
+/**
+ * Writes a checkpoint of the energy-aware routers' state and/or restores
+ * the routers from one (see {@link RouterCheckpoint}). With
+ * {@value #CHECKPOINT_TIME_S} and {@value #CHECKPOINT_FILE_S} the state is
+ * written once, on the first update at or after the given time. With
+ * {@value #RESTORE_FILE_S} the run fast-forwards to the checkpoint's time
+ * and restores the state there. The report itself only logs the
+ * checkpoints written and restored.
+ * <P>Known limitation: a restore does not skip the warm-up. Only the
+ * routers' state (buffers, acknowledgements, thresholds, contact history
+ * and duty cycles) and the energies are checkpointed, not the movement,
+ * connections or event queues of the simulator, so the restored run
+ * replays the movement and connections up to the checkpoint's time with
+ * passive routers. This saves the routing work of the warm-up, which
+ * usually dominates, but a fork still takes time proportional to the
+ * checkpoint's time rather than seconds.</P>
+ */
+public class CheckpointReport extends Report implements UpdateListener {
+	/** Simulation time of the checkpoint -setting id ({@value}) */
+	public static final String CHECKPOINT_TIME_S = "checkpointTime";
+	/** File to write the checkpoint to -setting id ({@value}) */
+	public static final String CHECKPOINT_FILE_S = "checkpointFile";
+	/** Checkpoint file to restore the run from -setting id ({@value}) */
+	public static final String RESTORE_FILE_S = "restoreFile";
+
+	private File checkpointFile;
+	private double checkpointTime;
+	private File restoreFile;
+	private double restoreTime;
+
+	/**
+	 * Constructor. Starts fast-forwarding if a restore file is set.
+	 */
+	public CheckpointReport() {
+		Settings s = getSettings();
+
+		if (s.contains(CHECKPOINT_FILE_S)) {
+			this.checkpointFile = new File(s.getSetting(CHECKPOINT_FILE_S));
+			this.checkpointTime = s.getDouble(CHECKPOINT_TIME_S);
+		}
+		if (s.contains(RESTORE_FILE_S)) {
+			this.restoreFile = new File(s.getSetting(RESTORE_FILE_S));
+			this.restoreTime = RouterCheckpoint.startRestore(restoreFile);
+		}
+	}
+
+	public void updated(List<DTNHost> hosts) {
+		double time = getSimTime();
+
+		if (restoreFile != null && time >= restoreTime) {
+			RouterCheckpoint.restore(restoreFile, hosts);
+			write("restored " + restoreFile + " (" + format(restoreTime) +
+					") at " + format(time));
+			restoreFile = null;
+		}
+		if (checkpointFile != null && time >= checkpointTime) {
+			try {
+				RouterCheckpoint.write(checkpointFile, hosts, time);
+			} catch (IOException e) {
+				throw new SimError("Can't write checkpoint " + checkpointFile +
+						": " + e.getMessage());
+			}
+			write("wrote " + checkpointFile + " at " + format(time));
+			checkpointFile = null;
+		}
+	}
+}
@@ -0,0 +1,370 @@
+/*
+ * Released under GPLv3. See LICENSE.txt for details.
+ */
+package report;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+import routing.EnergyView;
+import routing.MessageIndex;
+import routing.RoutingMetrics;
+import core.DTNHost;
+import core.Message;
+import core.MessageListener;
+import core.Settings;
+import core.SimError;
+import core.UpdateListener;
+
+/**
+ * Writes the message, energy and routing decision events of a run to a
+ * binary, column oriented event log that toolkit.EventLogReader reads.
+ * Events are collected into blocks of up to {@value #BLOCK_SIZE} rows and
+ * each block is written as fixed-width columns through one buffered file
+ * channel write, so nothing is formatted on the simulation thread.
+ * <P>Message events are logged as they happen. The energy of each host
+ * and the routing decision counters of the energy-aware routers (see
+ * {@link RoutingMetrics}) are sampled every {@value #SAMPLE_INTERVAL_S}
+ * seconds: an {@link #ENERGY} event is logged for each host on the first
+ * sample and then for each host whose energy
+ * changed since the previous sample, and a {@link #DECISION} event for each
+ * counter that grew, with the counter's index as the reason.</P>
+ * <P>The file starts with {@link #MAGIC} and {@link #VERSION}. Each block
+ * starts with its number of rows <i>n</i> and then has the columns in this
+ * order: time (double), energy before (double), energy after (double),
+ * host (int), peer (int), message (int), count (int), type (byte) and
+ * reason (byte). A block with 0 rows ends the blocks and is followed by
+ * the reason names and the message IDs (by message index) as string
+ * tables: the number of strings and then each string's UTF-8 length and
+ * bytes. Numbers are big-endian.</P>
+ * <P>Columns of the event types: for transfer events the host is the
+ * sender and the peer the receiver, otherwise the peer is -1. Message is
+ * the {@link MessageIndex} of the message or -1. Count is the message's
+ * hop count for message events and the counter's growth for decisions
+ * (saturated to the int range). Energies are the host's energy before and
+ * after an energy sample; for other events both are the host's energy at
+ * the event. Reason is -1 for all but decisions.</P>
+ */
+public class EventLogReport extends Report
+		implements MessageListener, UpdateListener {
+	/** Event log file -setting id ({@value}). Defaults to the report
+	 * directory's <code>scenario_EventLogReport.bin</code> */
+	public static final String EVENT_FILE_S = "eventFile";
+	/** Energy and decision sampling interval -setting id ({@value}) */
+	public static final String SAMPLE_INTERVAL_S = "sampleInterval";
+	/** Default sampling interval ({@value} seconds) */
+	public static final double DEF_SAMPLE_INTERVAL = 10;
+	/** Ending of the default event log file name ({@value}) */
+	public static final String LOG_SUFFIX = ".bin";
+
+	/** Magic number of an event log file ("EEVL") */
+	public static final int MAGIC = 0x4545564C;
+	/** Version of the format ({@value}) */
+	public static final int VERSION = 1;
+	/** Maximum number of rows in a block */
+	public static final int BLOCK_SIZE = 4096;
+	/** Bytes per row over all the columns */
+	public static final int ROW_WIDTH = 3 * 8 + 4 * 4 + 2;
+
+	/** Event type: message created */
+	public static final byte CREATED = 0;
+	/** Event type: transfer started */
+	public static final byte STARTED = 1;
+	/** Event type: message transferred, but not delivered the first time */
+	public static final byte RELAYED = 2;
+	/** Event type: message delivered to its destination the first time */
+	public static final byte DELIVERED = 3;
+	/** Event type: transfer aborted */
+	public static final byte ABORTED = 4;
+	/** Event type: message dropped from a buffer */
+	public static final byte DROPPED = 5;
+	/** Event type: message removed from a buffer (not dropped) */
+	public static final byte REMOVED = 6;
+	/** Event type: energy sample of a host */
+	public static final byte ENERGY = 7;
+	/** Event type: routing decisions of a host */
+	public static final byte DECISION = 8;
+	/** Names of the event types, in type order */
+	public static final String[] TYPE_NAMES = {"created", "started",
+		"relayed", "delivered", "aborted", "dropped", "removed", "energy",
+		"decision"};
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private String fileName;
+	private FileChannel channel;
+	private ByteBuffer buffer;
+	private double sampleInterval;
+	private double nextSample;
+	private long nrofEvents;
+	private int maxMessage;
+	/** IDs of the logged messages by message index; the index may release
+	 * an ID before the run ends */
+	private String[] messageIds;
+
+	/* the rows of the current block, column by column */
+	private int rows;
+	private double[] times;
+	private double[] energiesBefore;
+	private double[] energiesAfter;
+	private int[] addresses;
+	private int[] peerAddresses;
+	private int[] messages;
+	private int[] counts;
+	private byte[] types;
+	private byte[] reasons;
+
+	/* the state of the previous sample */
+	private List<DTNHost> sampledHosts;
+	private double[] lastEnergies;
+	private List<RoutingMetrics> metrics;
+	private long[][] lastCounts;
+
+	/**
+	 * Constructor. Opens the event log file.
+	 */
+	public EventLogReport() {
+		Settings s = getSettings();
+
+		if (s.contains(EVENT_FILE_S)) {
+			this.fileName = s.getSetting(EVENT_FILE_S);
+		} else {
+			String dir = new Settings().getSetting(REPORTDIR_SETTING);
+			if (!dir.endsWith("/")) {
+				dir += "/";
+			}
+			this.fileName = dir + getScenarioName() + "_" +
+				getClass().getSimpleName() + LOG_SUFFIX;
+		}
+		this.sampleInterval = s.contains(SAMPLE_INTERVAL_S) ?
+				s.getDouble(SAMPLE_INTERVAL_S) : DEF_SAMPLE_INTERVAL;
+		if (this.sampleInterval <= 0) {
+			throw new SimError(SAMPLE_INTERVAL_S + " must be positive");
+		}
+
+		this.times = new double[BLOCK_SIZE];
+		this.energiesBefore = new double[BLOCK_SIZE];
+		this.energiesAfter = new double[BLOCK_SIZE];
+		this.addresses = new int[BLOCK_SIZE];
+		this.peerAddresses = new int[BLOCK_SIZE];
+		this.messages = new int[BLOCK_SIZE];
+		this.counts = new int[BLOCK_SIZE];
+		this.types = new byte[BLOCK_SIZE];
+		this.reasons = new byte[BLOCK_SIZE];
+		this.buffer = ByteBuffer.allocateDirect(4 + BLOCK_SIZE * ROW_WIDTH);
+		this.maxMessage = -1;
+		this.messageIds = new String[256];
+
+		try {
+			this.channel = FileChannel.open(Paths.get(fileName),
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			buffer.putInt(MAGIC);
+			buffer.putInt(VERSION);
+			flushBuffer();
+		} catch (IOException e) {
+			throw new SimError("Can't open event log " + fileName + ": " +
+					e.getMessage());
+		}
+	}
+
+	public void newMessage(Message m) {
+		messageEvent(CREATED, m, m.getFrom(), null);
+	}
+
+	public void messageTransferStarted(Message m, DTNHost from, DTNHost to) {
+		messageEvent(STARTED, m, from, to);
+	}
+
+	public void messageTransferred(Message m, DTNHost from, DTNHost to,
+			boolean firstDelivery) {
+		messageEvent(firstDelivery ? DELIVERED : RELAYED, m, from, to);
+	}
+
+	public void messageTransferAborted(Message m, DTNHost from, DTNHost to) {
+		messageEvent(ABORTED, m, from, to);
+	}
+
+	public void messageDeleted(Message m, DTNHost where, boolean dropped) {
+		messageEvent(dropped ? DROPPED : REMOVED, m, where, null);
+	}
+
+	public void updated(List<DTNHost> hosts) {
+		if (getSimTime() >= nextSample) {
+			sample(hosts);
+			nextSample = getSimTime() + sampleInterval;
+		}
+	}
+
+	@Override
+	public void done() {
+		if (sampledHosts != null) {
+			sample(sampledHosts); /* what changed after the last sample */
+		}
+		try {
+			writeBlock();
+			buffer.putInt(0);
+			writeStrings(RoutingMetrics.NAMES);
+			writeStrings(Arrays.copyOf(messageIds, maxMessage + 1));
+			flushBuffer();
+			channel.close();
+		} catch (IOException e) {
+			throw new SimError("Can't write event log " + fileName + ": " +
+					e.getMessage());
+		}
+		write("Event log for scenario " + getScenarioName() +
+				"\nsim_time: " + format(getSimTime()) +
+				"\nfile: " + fileName +
+				"\nevents: " + nrofEvents);
+		super.done();
+	}
+
+	private void messageEvent(byte type, Message m, DTNHost host,
+			DTNHost peer) {
+		int message = MessageIndex.of(m.getId());
+		double energy = EnergyView.getEnergy(host);
+
+		if (message > maxMessage) {
+			maxMessage = message;
+		}
+		if (message >= messageIds.length) {
+			messageIds = Arrays.copyOf(messageIds,
+					Math.max(message + 1, messageIds.length * 2));
+		}
+		messageIds[message] = m.getId();
+		add(type, host.getAddress(), peer == null ? -1 : peer.getAddress(),
+				message, m.getHopCount(), (byte)-1, energy, energy);
+	}
+
+	/**
+	 * Logs the energy and decision events since the previous sample
+	 */
+	private void sample(List<DTNHost> hosts) {
+		if (sampledHosts == null) {
+			sampledHosts = hosts;
+			lastEnergies = new double[hosts.size()];
+			for (int i = 0; i < lastEnergies.length; i++) {
+				DTNHost host = hosts.get(i);
+				double energy = EnergyView.getEnergy(host);
+				/* the initial energy of every host, even if it never changes */
+				add(ENERGY, host.getAddress(), -1, -1, 0, (byte)-1, energy,
+						energy);
+				lastEnergies[i] = energy;
+			}
+			metrics = RoutingMetrics.getAll();
+			lastCounts = new long[metrics.size()][RoutingMetrics.NROF_COUNTERS];
+		}
+
+		for (int i = 0; i < lastEnergies.length; i++) {
+			DTNHost host = sampledHosts.get(i);
+			double energy = EnergyView.getEnergy(host);
+			if (energy != lastEnergies[i]) {
+				add(ENERGY, host.getAddress(), -1, -1, 0, (byte)-1,
+						lastEnergies[i], energy);
+				lastEnergies[i] = energy;
+			}
+		}
+
+		for (int i = 0; i < lastCounts.length; i++) {
+			RoutingMetrics m = metrics.get(i);
+			long[] last = lastCounts[i];
+			double energy = EnergyView.getEnergy(m.getHost());
+			for (int c = 0; c < RoutingMetrics.NROF_COUNTERS; c++) {
+				long count = m.get(c);
+				if (count != last[c]) {
+					long growth = Math.min(count - last[c], Integer.MAX_VALUE);
+					add(DECISION, m.getHost().getAddress(), -1, -1,
+							(int)growth, (byte)c, energy, energy);
+					last[c] = count;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds a row to the current block, writing the block if it is full
+	 */
+	private void add(byte type, int host, int peer, int message, int count,
+			byte reason, double energyBefore, double energyAfter) {
+		times[rows] = getSimTime();
+		energiesBefore[rows] = energyBefore;
+		energiesAfter[rows] = energyAfter;
+		addresses[rows] = host;
+		peerAddresses[rows] = peer;
+		messages[rows] = message;
+		counts[rows] = count;
+		types[rows] = type;
+		reasons[rows] = reason;
+		rows++;
+		nrofEvents++;
+
+		if (rows == BLOCK_SIZE) {
+			try {
+				writeBlock();
+			} catch (IOException e) {
+				throw new SimError("Can't write event log " + fileName + ": " +
+						e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Writes the rows of the current block column by column
+	 */
+	private void writeBlock() throws IOException {
+		if (rows == 0) {
+			return;
+		}
+		buffer.putInt(rows);
+		buffer.asDoubleBuffer().put(times, 0, rows);
+		buffer.position(buffer.position() + rows * 8);
+		buffer.asDoubleBuffer().put(energiesBefore, 0, rows);
+		buffer.position(buffer.position() + rows * 8);
+		buffer.asDoubleBuffer().put(energiesAfter, 0, rows);
+		buffer.position(buffer.position() + rows * 8);
+		buffer.asIntBuffer().put(addresses, 0, rows);
+		buffer.position(buffer.position() + rows * 4);
+		buffer.asIntBuffer().put(peerAddresses, 0, rows);
+		buffer.position(buffer.position() + rows * 4);
+		buffer.asIntBuffer().put(messages, 0, rows);
+		buffer.position(buffer.position() + rows * 4);
+		buffer.asIntBuffer().put(counts, 0, rows);
+		buffer.position(buffer.position() + rows * 4);
+		buffer.put(types, 0, rows);
+		buffer.put(reasons, 0, rows);
+		flushBuffer();
+		rows = 0;
+	}
+
+	/**
+	 * Writes a string table, flushing the buffer whenever it fills up
+	 */
+	private void writeStrings(String[] strings) throws IOException {
+		buffer.putInt(strings.length);
+		for (String s : strings) {
+			byte[] b = (s == null ? "" : s).getBytes(UTF8);
+			if (buffer.remaining() < 4 + b.length) {
+				flushBuffer();
+			}
+			buffer.putInt(b.length);
+			buffer.put(b);
+		}
+	}
+
+	/**
+	 * Writes the buffer's contents to the channel and clears the buffer
+	 */
+	private void flushBuffer() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+}
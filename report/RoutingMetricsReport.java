@@ -0,0 +1,55 @@
+/*
+ * Released under GPLv3. See LICENSE.txt for details.
+ */
+package report;
+
+import routing.RoutingMetrics;
+
+/**
+ * Reports the routing decision counters of the energy-aware routers (see
+ * {@link RoutingMetrics}) at the end of the simulation. The totals of each
+ * router class are reported first and then the counters of each host.
+ * Energy counters are reported in energy units. Comparing the aborted
+ * transfer energy of runs with and without contact prediction shows how
+ * much energy the prediction saves.
+ */
+public class RoutingMetricsReport extends Report {
+
+	@Override
+	public void done() {
+		StringBuilder header = new StringBuilder("# router host");
+		for (String name : RoutingMetrics.NAMES) {
+			header.append(' ').append(name);
+		}
+		write("Routing metrics for scenario " + getScenarioName() +
+				"\nsim_time: " + format(getSimTime()));
+		write(header.toString());
+
+		for (String routerClass : RoutingMetrics.getRouterClasses()) {
+			StringBuilder line = new StringBuilder(routerClass + " total");
+			for (int i = 0; i < RoutingMetrics.NROF_COUNTERS; i++) {
+				line.append(' ').append(value(i,
+						RoutingMetrics.getTotal(routerClass, i)));
+			}
+			write(line.toString());
+		}
+
+		for (RoutingMetrics m : RoutingMetrics.getAll()) {
+			StringBuilder line = new StringBuilder(m.getRouterClass() + " " +
+					m.getHost());
+			for (int i = 0; i < RoutingMetrics.NROF_COUNTERS; i++) {
+				line.append(' ').append(value(i, m.get(i)));
+			}
+			write(line.toString());
+		}
+
+		super.done();
+	}
+
+	private String value(int counter, long value) {
+		if (RoutingMetrics.isEnergy(counter)) {
+			return format(value * RoutingMetrics.ENERGY_UNIT);
+		}
+		return String.valueOf(value);
+	}
+}
@@ -0,0 +1,260 @@
+/*
+ * Released under GPLv3. See LICENSE.txt for details.
+ */
+package toolkit;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Computes the average remaining energy and the number of dead nodes from
+ * ONE's EnergyLevelReport files for every snapshot in the files. The files
+ * are read line by line, several files in parallel, and the results of all
+ * files are written to one CSV file (or the standard output) with the
+ * columns <code>file,scenario,time,nodes,average_energy,dead_nodes</code>.
+ * The number of nodes is the number of hosts in each snapshot.
+ * <P>Usage: <code>EnergyReportAnalyser [-t threshold] [-o output.csv]
+ * [-j threads] file|directory...</code>. Directories are searched for files
+ * ending with {@value #REPORT_SUFFIX}. A node is dead if its energy is
+ * below the threshold (default {@value #DEF_THRESHOLD}).</P>
+ */
+public class EnergyReportAnalyser {
+	/** Ending of the energy report file names ({@value}) */
+	public static final String REPORT_SUFFIX = "_EnergyLevelReport.txt";
+	/** Default dead node energy threshold ({@value}) */
+	public static final double DEF_THRESHOLD = 600;
+	/** Header line of the CSV output */
+	public static final String CSV_HEADER =
+		"file,scenario,time,nodes,average_energy,dead_nodes";
+
+	private double threshold;
+
+	/**
+	 * Creates an analyser
+	 * @param threshold Energy below which a node is counted as dead
+	 */
+	public EnergyReportAnalyser(double threshold) {
+		this.threshold = threshold;
+	}
+
+	/**
+	 * Analyses one report file
+	 * @param file The EnergyLevelReport file
+	 * @return The CSV lines of the file's snapshots (without line ends)
+	 * @throws IOException If the file can't be read or is malformed
+	 */
+	public List<String> analyse(File file) throws IOException {
+		List<String> rows = new ArrayList<String>();
+		String name = file.getName();
+		String prefix = csvField(name) + "," + csvField(scenarioOf(name)) + ",";
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), StandardCharsets.US_ASCII), 1 << 16);
+		String time = null;
+		int nodes = 0;
+		int dead = 0;
+		double sum = 0;
+		int lineNr = 0;
+
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				lineNr++;
+				line = line.trim();
+				if (line.isEmpty()) {
+					continue;
+				}
+				if (line.charAt(0) == '[') { /* start of a new snapshot */
+					if (time != null) {
+						rows.add(row(prefix, time, nodes, sum, dead));
+					}
+					int end = line.indexOf(']');
+					if (end < 0) {
+						throw new IOException(name + ":" + lineNr +
+								": malformed snapshot time " + line);
+					}
+					time = line.substring(1, end);
+					nodes = 0;
+					dead = 0;
+					sum = 0;
+					continue;
+				}
+
+				int space = line.lastIndexOf(' ');
+				if (time == null || space < 0) {
+					throw new IOException(name + ":" + lineNr +
+							": expected \"host energy\" in a snapshot: " + line);
+				}
+				double energy;
+				try {
+					energy = Double.parseDouble(line.substring(space + 1));
+				} catch (NumberFormatException e) {
+					throw new IOException(name + ":" + lineNr +
+							": invalid energy value: " + line);
+				}
+				nodes++;
+				sum += energy;
+				if (energy < threshold) {
+					dead++;
+				}
+			}
+		} finally {
+			in.close();
+		}
+
+		if (time != null) {
+			rows.add(row(prefix, time, nodes, sum, dead));
+		}
+		return rows;
+	}
+
+	private static String row(String prefix, String time, int nodes,
+			double sum, int dead) {
+		double average = nodes > 0 ? sum / nodes : Double.NaN;
+		return prefix + time + "," + nodes + "," +
+			String.format(Locale.US, "%.4f", average) + "," + dead;
+	}
+
+	/**
+	 * Returns the scenario name of a report file name
+	 * @param fileName Name of the report file
+	 * @return The part of the name before {@link #REPORT_SUFFIX}, or the
+	 * whole name if it doesn't end with it
+	 */
+	public static String scenarioOf(String fileName) {
+		if (fileName.endsWith(REPORT_SUFFIX)) {
+			return fileName.substring(0,
+					fileName.length() - REPORT_SUFFIX.length());
+		}
+		return fileName;
+	}
+
+	private static String csvField(String value) {
+		if (value.indexOf(',') < 0 && value.indexOf('"') < 0) {
+			return value;
+		}
+		return "\"" + value.replace("\"", "\"\"") + "\"";
+	}
+
+	/**
+	 * Analyses report files in parallel and writes the results in the
+	 * order of the files
+	 * @param files The report files
+	 * @param out Where to write the CSV lines
+	 * @param threads Number of files to read at the same time
+	 * @throws IOException If a file can't be read
+	 */
+	public void analyse(List<File> files, PrintWriter out, int threads)
+			throws IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<List<String>>> results =
+			new ArrayList<Future<List<String>>>();
+
+		try {
+			for (final File f : files) {
+				results.add(executor.submit(new Callable<List<String>>() {
+					public List<String> call() throws IOException {
+						return analyse(f);
+					}
+				}));
+			}
+
+			out.println(CSV_HEADER);
+			for (Future<List<String>> result : results) {
+				for (String row : result.get()) {
+					out.println(row);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException)e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+		out.flush();
+	}
+
+	/**
+	 * Adds a file, or the report files in a directory, to a list
+	 */
+	private static void addFiles(File f, List<File> files) {
+		if (!f.isDirectory()) {
+			files.add(f);
+			return;
+		}
+
+		File[] reports = f.listFiles();
+		if (reports == null) {
+			return;
+		}
+		Arrays.sort(reports);
+		for (File r : reports) {
+			if (r.isFile() && r.getName().endsWith(REPORT_SUFFIX)) {
+				files.add(r);
+			}
+		}
+	}
+
+	private static void usage() {
+		System.err.println("Usage: EnergyReportAnalyser [-t threshold] " +
+				"[-o output.csv] [-j threads] file|directory...");
+		System.exit(1);
+	}
+
+	public static void main(String[] args) throws IOException {
+		double threshold = DEF_THRESHOLD;
+		String output = null;
+		int threads = Runtime.getRuntime().availableProcessors();
+		List<File> files = new ArrayList<File>();
+
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("-t") && i + 1 < args.length) {
+					threshold = Double.parseDouble(args[++i]);
+				} else if (args[i].equals("-o") && i + 1 < args.length) {
+					output = args[++i];
+				} else if (args[i].equals("-j") && i + 1 < args.length) {
+					threads = Integer.parseInt(args[++i]);
+				} else if (args[i].startsWith("-")) {
+					usage();
+				} else {
+					addFiles(new File(args[i]), files);
+				}
+			}
+		} catch (NumberFormatException e) {
+			usage();
+		}
+		if (files.isEmpty() || threads < 1) {
+			usage();
+		}
+
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(
+				output == null ? System.out : new FileOutputStream(output),
+				StandardCharsets.US_ASCII));
+		try {
+			new EnergyReportAnalyser(threshold).analyse(files, out, threads);
+		} finally {
+			out.close();
+		}
+	}
+}
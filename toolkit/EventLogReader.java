@@ -0,0 +1,467 @@
+/*
+ * Released under GPLv3. See LICENSE.txt for details.
+ */
+package toolkit;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import report.EventLogReport;
+
+/**
+ * Reads the binary event logs of report.EventLogReport. The file is
+ * memory-mapped and each {@link Block} reads its columns straight from the
+ * mapping, so a scan over a few columns only touches the pages of those
+ * columns and nothing is parsed. Logs must be smaller than 2 GB, the
+ * size of one mapping.
+ * <P>As a program, summarises event logs into one CSV file (or the standard
+ * output) with the columns <code>file,scenario,events,created,delivered,
+ * delivery_prob,latency_avg,hopcount_avg,aborted,dropped,nodes,
+ * average_energy,dead_nodes</code> followed by the total of each decision
+ * reason. The energy columns are of the hosts' last energy samples. The
+ * average latency is of the deliveries whose message creation is known;
+ * a log of an unfinished run has no message table and so no latencies.</P>
+ * <P>Usage: <code>EventLogReader [-t threshold] [-o output.csv]
+ * file|directory...</code>. Directories are searched for files ending with
+ * {@value #LOG_SUFFIX}. A node is dead if its energy is below the
+ * threshold (default {@value #DEF_THRESHOLD}).</P>
+ */
+public class EventLogReader {
+	/** Ending of the event log file names ({@value}) */
+	public static final String LOG_SUFFIX = "_EventLogReport.bin";
+	/** Default dead node energy threshold ({@value}) */
+	public static final double DEF_THRESHOLD = 600;
+
+	private File file;
+	private ByteBuffer buffer;
+	/** offset of each block's row count in the file */
+	private int[] blocks;
+	private int nrofBlocks;
+	private long nrofEvents;
+	private String[] reasons;
+	private String[] messageIds;
+
+	/**
+	 * Opens an event log, mapping it to memory
+	 * @param file The event log file
+	 * @throws IOException If the file can't be read or is not an event log
+	 */
+	public EventLogReader(File file) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.READ);
+		try {
+			this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size());
+		} finally {
+			channel.close(); /* the mapping stays valid */
+		}
+		this.file = file;
+
+		if (buffer.capacity() < 8 ||
+				buffer.getInt(0) != EventLogReport.MAGIC) {
+			throw new IOException(file + " is not an event log");
+		}
+		if (buffer.getInt(4) != EventLogReport.VERSION) {
+			throw new IOException(file + " has version " + buffer.getInt(4) +
+					" instead of " + EventLogReport.VERSION);
+		}
+
+		this.blocks = new int[16];
+		int offset = 8;
+		while (offset + 4 <= buffer.capacity()) {
+			int rows = buffer.getInt(offset);
+			if (rows == 0) {
+				break;
+			}
+			if (rows < 0 || rows > EventLogReport.BLOCK_SIZE ||
+					offset + 4L + (long)rows * EventLogReport.ROW_WIDTH >
+					buffer.capacity()) {
+				throw new IOException(file + ": corrupt block at " + offset);
+			}
+			if (nrofBlocks == blocks.length) {
+				blocks = Arrays.copyOf(blocks, nrofBlocks * 2);
+			}
+			blocks[nrofBlocks++] = offset;
+			nrofEvents += rows;
+			offset += 4 + rows * EventLogReport.ROW_WIDTH;
+		}
+
+		if (offset + 4 <= buffer.capacity()) {
+			buffer.position(offset + 4);
+			this.reasons = readStrings();
+			this.messageIds = readStrings();
+		} else { /* the run didn't finish: no string tables */
+			this.reasons = new String[0];
+			this.messageIds = new String[0];
+		}
+	}
+
+	private String[] readStrings() throws IOException {
+		if (buffer.remaining() < 4) {
+			throw new IOException(file + ": truncated string table");
+		}
+		String[] strings = new String[buffer.getInt()];
+		for (int i = 0; i < strings.length; i++) {
+			int length = buffer.remaining() < 4 ? -1 : buffer.getInt();
+			if (length < 0 || length > buffer.remaining()) {
+				throw new IOException(file + ": truncated string table");
+			}
+			byte[] b = new byte[length];
+			buffer.get(b);
+			strings[i] = new String(b, StandardCharsets.UTF_8);
+		}
+		return strings;
+	}
+
+	/**
+	 * Returns the number of blocks in the log
+	 * @return The number of blocks
+	 */
+	public int getNrofBlocks() {
+		return this.nrofBlocks;
+	}
+
+	/**
+	 * Returns the number of events in the log
+	 * @return The number of events
+	 */
+	public long getNrofEvents() {
+		return this.nrofEvents;
+	}
+
+	/**
+	 * Returns a block of the log
+	 * @param index Index of the block (0...{@link #getNrofBlocks()}-1)
+	 * @return The block
+	 */
+	public Block getBlock(int index) {
+		if (index < 0 || index >= nrofBlocks) {
+			throw new IndexOutOfBoundsException("Block " + index + " of " +
+					nrofBlocks);
+		}
+		return new Block(buffer, blocks[index]);
+	}
+
+	/**
+	 * Returns the name of a decision reason
+	 * @param reason The reason of a decision event
+	 * @return The name or null if the log has no such reason
+	 */
+	public String getReasonName(int reason) {
+		return reason >= 0 && reason < reasons.length ? reasons[reason] : null;
+	}
+
+	/**
+	 * Returns the number of decision reasons in the log
+	 * @return The number of reasons (0 if the run didn't finish)
+	 */
+	public int getNrofReasons() {
+		return reasons.length;
+	}
+
+	/**
+	 * Returns the ID of a message
+	 * @param message The message column value of an event
+	 * @return The ID or null if the log has no such message
+	 */
+	public String getMessageId(int message) {
+		return message >= 0 && message < messageIds.length ?
+				messageIds[message] : null;
+	}
+
+	/**
+	 * Returns the number of message indexes in the log
+	 * @return The highest message index + 1 (0 if the run didn't finish)
+	 */
+	public int getNrofMessages() {
+		return messageIds.length;
+	}
+
+	/**
+	 * One block of events. The values are read from the mapped file on
+	 * each call; see report.EventLogReport for the meaning of the columns.
+	 */
+	public static class Block {
+		private ByteBuffer buffer;
+		private int size;
+		private int times;
+		private int energiesBefore;
+		private int energiesAfter;
+		private int hosts;
+		private int peers;
+		private int messages;
+		private int counts;
+		private int types;
+		private int reasons;
+
+		private Block(ByteBuffer buffer, int offset) {
+			this.buffer = buffer;
+			this.size = buffer.getInt(offset);
+			this.times = offset + 4;
+			this.energiesBefore = times + size * 8;
+			this.energiesAfter = energiesBefore + size * 8;
+			this.hosts = energiesAfter + size * 8;
+			this.peers = hosts + size * 4;
+			this.messages = peers + size * 4;
+			this.counts = messages + size * 4;
+			this.types = counts + size * 4;
+			this.reasons = types + size;
+		}
+
+		/**
+		 * Returns the number of events in the block
+		 * @return The number of events
+		 */
+		public int size() {
+			return this.size;
+		}
+
+		public double getTime(int i) {
+			return buffer.getDouble(times + i * 8);
+		}
+
+		public double getEnergyBefore(int i) {
+			return buffer.getDouble(energiesBefore + i * 8);
+		}
+
+		public double getEnergyAfter(int i) {
+			return buffer.getDouble(energiesAfter + i * 8);
+		}
+
+		public int getHost(int i) {
+			return buffer.getInt(hosts + i * 4);
+		}
+
+		public int getPeer(int i) {
+			return buffer.getInt(peers + i * 4);
+		}
+
+		public int getMessage(int i) {
+			return buffer.getInt(messages + i * 4);
+		}
+
+		public int getCount(int i) {
+			return buffer.getInt(counts + i * 4);
+		}
+
+		public int getType(int i) {
+			return buffer.get(types + i);
+		}
+
+		public int getReason(int i) {
+			return buffer.get(reasons + i);
+		}
+	}
+
+	/**
+	 * Summarises an event log
+	 * @param threshold Energy below which a node is counted as dead
+	 * @return The values of the summary's CSV columns after the file name
+	 * and scenario, including the decision totals
+	 */
+	public List<String> summarise(double threshold) {
+		double[] created = new double[messageIds.length];
+		double[] energies = new double[16];
+		long[] decisions = new long[reasons.length];
+		long[] types = new long[EventLogReport.TYPE_NAMES.length];
+		double latencies = 0;
+		/* deliveries whose message's creation is in the log */
+		long nrofLatencies = 0;
+		long hops = 0;
+		int nrofHosts = 0;
+
+		Arrays.fill(created, Double.NaN);
+		Arrays.fill(energies, Double.NaN);
+		for (int b = 0; b < nrofBlocks; b++) {
+			Block block = getBlock(b);
+			for (int i = 0; i < block.size(); i++) {
+				int type = block.getType(i);
+				int message = block.getMessage(i);
+
+				if (type >= 0 && type < types.length) {
+					types[type]++;
+				}
+				if (type == EventLogReport.CREATED && message >= 0 &&
+						message < created.length) {
+					created[message] = block.getTime(i);
+				} else if (type == EventLogReport.DELIVERED) {
+					if (message >= 0 && message < created.length &&
+							!Double.isNaN(created[message])) {
+						latencies += block.getTime(i) - created[message];
+						nrofLatencies++;
+					}
+					hops += block.getCount(i);
+				} else if (type == EventLogReport.ENERGY) {
+					int host = block.getHost(i);
+					if (host >= energies.length) {
+						int old = energies.length;
+						energies = Arrays.copyOf(energies,
+								Math.max(host + 1, old * 2));
+						Arrays.fill(energies, old, energies.length, Double.NaN);
+					}
+					energies[host] = block.getEnergyAfter(i);
+				} else if (type == EventLogReport.DECISION) {
+					int reason = block.getReason(i);
+					if (reason >= 0 && reason < decisions.length) {
+						decisions[reason] += block.getCount(i);
+					}
+				}
+			}
+		}
+
+		double sum = 0;
+		int dead = 0;
+		for (double energy : energies) {
+			if (!Double.isNaN(energy)) {
+				nrofHosts++;
+				sum += energy;
+				if (energy < threshold) {
+					dead++;
+				}
+			}
+		}
+
+		long nrofCreated = types[EventLogReport.CREATED];
+		long nrofDelivered = types[EventLogReport.DELIVERED];
+		List<String> values = new ArrayList<String>();
+		values.add(String.valueOf(nrofEvents));
+		values.add(String.valueOf(nrofCreated));
+		values.add(String.valueOf(nrofDelivered));
+		values.add(format(nrofCreated > 0 ?
+				(double)nrofDelivered / nrofCreated : Double.NaN));
+		values.add(format(nrofLatencies > 0 ?
+				latencies / nrofLatencies : Double.NaN));
+		values.add(format(nrofDelivered > 0 ?
+				(double)hops / nrofDelivered : Double.NaN));
+		values.add(String.valueOf(types[EventLogReport.ABORTED]));
+		values.add(String.valueOf(types[EventLogReport.DROPPED]));
+		values.add(String.valueOf(nrofHosts));
+		values.add(format(nrofHosts > 0 ? sum / nrofHosts : Double.NaN));
+		values.add(String.valueOf(dead));
+		for (long total : decisions) {
+			values.add(String.valueOf(total));
+		}
+		return values;
+	}
+
+	private static String format(double value) {
+		return String.format(Locale.US, "%.4f", value);
+	}
+
+	/**
+	 * Returns the scenario name of an event log file name
+	 * @param fileName Name of the event log file
+	 * @return The part of the name before {@link #LOG_SUFFIX}, or the
+	 * whole name if it doesn't end with it
+	 */
+	public static String scenarioOf(String fileName) {
+		if (fileName.endsWith(LOG_SUFFIX)) {
+			return fileName.substring(0,
+					fileName.length() - LOG_SUFFIX.length());
+		}
+		return fileName;
+	}
+
+	private static String csvField(String value) {
+		if (value.indexOf(',') < 0 && value.indexOf('"') < 0) {
+			return value;
+		}
+		return "\"" + value.replace("\"", "\"\"") + "\"";
+	}
+
+	/**
+	 * Adds a file, or the event logs in a directory, to a list
+	 */
+	private static void addFiles(File f, List<File> files) {
+		if (!f.isDirectory()) {
+			files.add(f);
+			return;
+		}
+
+		File[] logs = f.listFiles();
+		if (logs == null) {
+			return;
+		}
+		Arrays.sort(logs);
+		for (File l : logs) {
+			if (l.isFile() && l.getName().endsWith(LOG_SUFFIX)) {
+				files.add(l);
+			}
+		}
+	}
+
+	private static void usage() {
+		System.err.println("Usage: EventLogReader [-t threshold] " +
+				"[-o output.csv] file|directory...");
+		System.exit(1);
+	}
+
+	public static void main(String[] args) throws IOException {
+		double threshold = DEF_THRESHOLD;
+		String output = null;
+		List<File> files = new ArrayList<File>();
+
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("-t") && i + 1 < args.length) {
+					threshold = Double.parseDouble(args[++i]);
+				} else if (args[i].equals("-o") && i + 1 < args.length) {
+					output = args[++i];
+				} else if (args[i].startsWith("-")) {
+					usage();
+				} else {
+					addFiles(new File(args[i]), files);
+				}
+			}
+		} catch (NumberFormatException e) {
+			usage();
+		}
+		if (files.isEmpty()) {
+			usage();
+		}
+
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(
+				output == null ? System.out : new FileOutputStream(output),
+				StandardCharsets.UTF_8));
+		try {
+			String[] header = null;
+			for (File f : files) {
+				EventLogReader log = new EventLogReader(f);
+				if (header == null) {
+					header = log.reasons;
+					StringBuilder line = new StringBuilder("file,scenario," +
+							"events,created,delivered,delivery_prob," +
+							"latency_avg,hopcount_avg,aborted,dropped,nodes," +
+							"average_energy,dead_nodes");
+					for (String reason : header) {
+						line.append(',').append(reason);
+					}
+					out.println(line);
+				} else if (!Arrays.equals(header, log.reasons)) {
+					throw new IOException(f + " has different decision " +
+							"reasons than " + files.get(0));
+				}
+
+				StringBuilder line = new StringBuilder(csvField(f.getName()) +
+						"," + csvField(scenarioOf(f.getName())));
+				for (String value : log.summarise(threshold)) {
+					line.append(',').append(value);
+				}
+				out.println(line);
+			}
+		} finally {
+			out.close();
+		}
+	}
+}
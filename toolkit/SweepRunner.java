@@ -0,0 +1,281 @@
+/*
+ * Released under GPLv3. See LICENSE.txt for details.
+ */
+package toolkit;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the runs of a batch simulation concurrently in one JVM. The
+ * scenario variants are defined with the simulator's run-indexed setting
+ * values, e.g. <code>E_LifeRouter.battery_level_threshold = [0; 600;
+ * 1200]</code> or <code>Group.initialEnergy = [2500; 5000]</code>, and
+ * run <i>i</i> of the sweep is the batch run with run index <i>i</i>. Use
+ * e.g. <code>Scenario.name = sweep_%%Group.initialEnergy%%</code> to give
+ * each run its own report files.
+ * <P>Every run gets a class loader of its own for the simulator classes,
+ * so the static state of the simulator and the routers (clock, settings,
+ * host addresses, ...) is not shared between the runs. The routers take
+ * their settings from per-instance configuration objects
+ * (routing.EnergyRouterConfig), so they don't depend on which run parsed
+ * the settings first.</P>
+ * <P>The map and trace input classes ({@link #DEF_SHARED}: the WKT and
+ * external movement readers, the map graph and the value types they hand
+ * out) are loaded once by a shared parent loader instead, so all the runs
+ * use the same classes and any state the classes keep. The simulator's
+ * movement models still read their inputs through these readers once per
+ * run, since their map cache is per run.</P>
+ * <P>Usage: <code>SweepRunner [-j threads] [-cp classpath]
+ * [-share prefix,...] runs settings_file...</code>. The classpath must
+ * contain the simulator and the routers; by default the runner's own
+ * classpath is used. <code>-share</code> replaces the shared class name
+ * prefixes; a shared class must only depend on other shared classes and
+ * the JDK, and must not keep per-run state. Runs can be
+ * given as a count or as a range (<code>first:last</code>, one-based) like
+ * for the simulator's batch mode. Note that a run that fails with a
+ * settings error terminates the whole JVM, as in batch mode.</P>
+ */
+public class SweepRunner {
+	/** Name of the simulator's main class ({@value}) */
+	public static final String MAIN_CLASS = "core.DTNSim";
+	/** Batch mode flag of the simulator ({@value}) */
+	public static final String BATCH_MODE_FLAG = "-b";
+	/** Default prefixes of the names of the classes shared by the runs */
+	public static final String[] DEF_SHARED = {"movement.map.",
+		"input.WKTReader", "input.WKTMapReader", "input.ExternalMovementReader",
+		"core.Coord", "core.Tuple", "core.SettingsError", "core.SimError"};
+
+	private URL[] classpath;
+	private List<String> settingsFiles;
+	private String[] shared;
+	/** loads the shared classes for all the runs */
+	private URLClassLoader sharedLoader;
+
+	/**
+	 * Creates a runner that shares the {@link #DEF_SHARED} classes
+	 * @param classpath Where the simulator classes are loaded from
+	 * @param settingsFiles The settings files of the runs
+	 */
+	public SweepRunner(URL[] classpath, List<String> settingsFiles) {
+		this(classpath, settingsFiles, DEF_SHARED);
+	}
+
+	/**
+	 * Creates a runner
+	 * @param classpath Where the simulator classes are loaded from
+	 * @param settingsFiles The settings files of the runs
+	 * @param shared Prefixes of the names of the classes shared by the runs
+	 */
+	public SweepRunner(URL[] classpath, List<String> settingsFiles,
+			String[] shared) {
+		this.classpath = classpath;
+		this.settingsFiles = settingsFiles;
+		this.shared = shared;
+		this.sharedLoader = new URLClassLoader(classpath,
+				ClassLoader.getSystemClassLoader().getParent());
+	}
+
+	/**
+	 * Runs a range of runs concurrently
+	 * @param first Index of the first run (zero-based)
+	 * @param last Index of the last run (exclusive)
+	 * @param threads Maximum number of runs running at the same time
+	 * @return The number of failed runs
+	 */
+	public int run(int first, int last, int threads) {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<Double>> results = new ArrayList<Future<Double>>();
+		int failed = 0;
+
+		for (int i = first; i < last; i++) {
+			final int runIndex = i;
+			results.add(executor.submit(new Callable<Double>() {
+				public Double call() throws Exception {
+					return runOne(runIndex);
+				}
+			}));
+		}
+		executor.shutdown();
+
+		for (int i = first; i < last; i++) {
+			try {
+				double duration = results.get(i - first).get();
+				print("Run " + (i + 1) + " done in " +
+						String.format("%.2f", duration) + "s");
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof InvocationTargetException) {
+					cause = cause.getCause();
+				}
+				print("Run " + (i + 1) + " failed: " + cause);
+				failed++;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				executor.shutdownNow();
+				print("Interrupted");
+				return failed + (last - i);
+			}
+		}
+		return failed;
+	}
+
+	/**
+	 * Runs one run in a class loader of its own
+	 * @param runIndex Run index of the run
+	 * @return Duration of the run (seconds)
+	 */
+	private double runOne(int runIndex) throws Exception {
+		long start = System.currentTimeMillis();
+		Thread thread = Thread.currentThread();
+		ClassLoader oldLoader = thread.getContextClassLoader();
+		URLClassLoader loader = new RunLoader(classpath, sharedLoader, shared);
+		String[] args = new String[settingsFiles.size() + 2];
+
+		args[0] = BATCH_MODE_FLAG;
+		args[1] = (runIndex + 1) + ":" + (runIndex + 1);
+		for (int i = 0; i < settingsFiles.size(); i++) {
+			args[i + 2] = settingsFiles.get(i);
+		}
+
+		try {
+			thread.setContextClassLoader(loader);
+			Method main = loader.loadClass(MAIN_CLASS).getMethod("main",
+					String[].class);
+			main.invoke(null, (Object)args);
+		} finally {
+			thread.setContextClassLoader(oldLoader);
+			loader.close();
+		}
+		return (System.currentTimeMillis() - start) / 1000.0;
+	}
+
+	/**
+	 * Closes the shared class loader
+	 * @throws IOException if closing fails
+	 */
+	public void close() throws IOException {
+		sharedLoader.close();
+	}
+
+	/**
+	 * Class loader of one run. The shared classes are asked from the shared
+	 * loader, all the others (but the JDK's) are loaded by this loader.
+	 */
+	private static class RunLoader extends URLClassLoader {
+		private ClassLoader sharedLoader;
+		private String[] shared;
+
+		public RunLoader(URL[] classpath, ClassLoader sharedLoader,
+				String[] shared) {
+			super(classpath, ClassLoader.getSystemClassLoader().getParent());
+			this.sharedLoader = sharedLoader;
+			this.shared = shared;
+		}
+
+		@Override
+		protected Class<?> loadClass(String name, boolean resolve)
+				throws ClassNotFoundException {
+			for (String prefix : shared) {
+				if (name.startsWith(prefix)) {
+					return sharedLoader.loadClass(name);
+				}
+			}
+			return super.loadClass(name, resolve);
+		}
+	}
+
+	/**
+	 * Converts a classpath string to URLs
+	 * @param classpath The classpath
+	 * @return URLs of the classpath entries
+	 */
+	public static URL[] toURLs(String classpath) throws MalformedURLException {
+		String[] entries = classpath.split(File.pathSeparator);
+		URL[] urls = new URL[entries.length];
+
+		for (int i = 0; i < entries.length; i++) {
+			urls[i] = new File(entries[i]).toURI().toURL();
+		}
+		return urls;
+	}
+
+	private static void print(String txt) {
+		System.out.println(txt);
+	}
+
+	private static void usage() {
+		System.err.println("Usage: SweepRunner [-j threads] [-cp classpath] " +
+				"[-share prefix,...] runs|first:last settings_file...");
+		System.exit(1);
+	}
+
+	public static void main(String[] args) throws IOException {
+		int threads = Runtime.getRuntime().availableProcessors();
+		String classpath = System.getProperty("java.class.path");
+		String[] shared = DEF_SHARED;
+		int i = 0;
+
+		while (i < args.length && args[i].startsWith("-")) {
+			if (args[i].equals("-j") && i + 1 < args.length) {
+				try {
+					threads = Integer.parseInt(args[i + 1]);
+				} catch (NumberFormatException e) {
+					usage();
+				}
+			} else if (args[i].equals("-cp") && i + 1 < args.length) {
+				classpath = args[i + 1];
+			} else if (args[i].equals("-share") && i + 1 < args.length) {
+				shared = args[i + 1].isEmpty() ? new String[0] :
+					args[i + 1].split(",");
+			} else {
+				usage();
+			}
+			i += 2;
+		}
+		if (args.length - i < 2 || threads < 1) {
+			usage();
+		}
+
+		int first, last;
+		String runs = args[i++];
+		try {
+			int colon = runs.indexOf(':');
+			if (colon < 0) {
+				first = 0;
+				last = Integer.parseInt(runs);
+			} else {
+				first = Integer.parseInt(runs.substring(0, colon)) - 1;
+				last = Integer.parseInt(runs.substring(colon + 1));
+			}
+		} catch (NumberFormatException e) {
+			usage();
+			return;
+		}
+
+		List<String> settingsFiles = new ArrayList<String>();
+		while (i < args.length) {
+			settingsFiles.add(args[i++]);
+		}
+
+		SweepRunner runner = new SweepRunner(toURLs(classpath), settingsFiles,
+				shared);
+		int failed = runner.run(first, last, threads);
+		runner.close();
+		print("---\n" + (last - first - failed) + "/" + (last - first) +
+				" runs done");
+		System.exit(failed > 0 ? 1 : 0);
+	}
+}